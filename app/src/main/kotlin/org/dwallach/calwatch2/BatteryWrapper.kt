@@ -6,6 +6,7 @@
  */
 package org.dwallach.calwatch2
 
+import android.content.BroadcastReceiver
 import android.content.Context
 import android.content.Intent
 import android.content.IntentFilter
@@ -20,60 +21,147 @@ import java.lang.ref.WeakReference
 private val TAG = "BatterWrapper"
 
 /**
- * This class wraps all of our interaction with Android's BatteryManager. In particular, we only
- * want to make infrequent request to Android for the level of the battery, but we want to support
- * very frequent queries to this wrapper class.
+ * An immutable snapshot of the battery. Along with the raw level, this carries [indicator], which
+ * summarizes everything about the battery indicator that [ClockFace] draws: nothing at all above
+ * [Constants.POWER_WARN_LOW_LEVEL], then one of [LOW_BUCKETS] + 1 dot sizes, then critical. If the
+ * indicator hasn't changed, there's nothing to redraw.
+ */
+class BatteryState(val level: Float, val isCharging: Boolean) {
+    val indicator: Int = when {
+        level > Constants.POWER_WARN_LOW_LEVEL -> INDICATOR_NONE
+        level <= Constants.POWER_WARN_CRITICAL_LEVEL -> INDICATOR_CRITICAL
+        else -> {
+            // 0 at the low level, growing to LOW_BUCKETS as we approach the critical level
+            val fraction = (Constants.POWER_WARN_LOW_LEVEL - level) /
+                (Constants.POWER_WARN_LOW_LEVEL - Constants.POWER_WARN_CRITICAL_LEVEL)
+            (fraction * LOW_BUCKETS).toInt().coerceIn(0, LOW_BUCKETS)
+        }
+    }
+
+    val isCritical: Boolean
+        get() = indicator == INDICATOR_CRITICAL
+
+    /** How big the dot should be, from 0 (smallest) to 1 (biggest), if there's a dot at all. */
+    val dotFraction: Float
+        get() = if (isCritical) 1f else indicator.coerceAtLeast(0) / LOW_BUCKETS.toFloat()
+
+    override fun toString() = "BatteryState(level = %.3f, charging = $isCharging, indicator = $indicator)".format(level)
+
+    companion object {
+        const val LOW_BUCKETS = 10
+        const val INDICATOR_NONE = -1
+        const val INDICATOR_CRITICAL = LOW_BUCKETS + 1
+
+        /** Until we hear otherwise, we'll assume the battery is full. */
+        val UNKNOWN = BatteryState(1.0f, false)
+    }
+}
+
+/**
+ * This class wraps all of our interaction with Android's BatteryManager. We used to poll the sticky
+ * ACTION_BATTERY_CHANGED intent, which is a relatively expensive IPC call, every few minutes from
+ * the draw loop. Now we register a receiver, so Android tells us when anything changes, and we
+ * publish an immutable [BatteryState] that anybody can read, as often as they like, for free.
+ *
+ * The battery level tends to wobble up and down by a percent or so. Drops are real, so we always take
+ * those, but if we're not charging, we ignore rises smaller than [RISE_HYSTERESIS]. When the drawn
+ * indicator actually changes, we tell every [ClockFace] with [Invalidation.BATTERY].
  */
 object BatteryWrapper {
     private var contextRef = WeakReference<Context>(null)
+    private var isReceiverRegistered = false
 
-    var isCharging: Boolean = false
-        private set
-    var batteryPct: Float = 1.0f
+    private const val RISE_HYSTERESIS = 0.02f
+
+    @Volatile
+    var state: BatteryState = BatteryState.UNKNOWN
         private set
 
-    fun fetchStatus() {
-        val context = contextRef.get() ?: return // no context, can't do anything
+    val isCharging: Boolean
+        get() = state.isCharging
+    val batteryPct: Float
+        get() = state.level
 
+    private val receiver = object : BroadcastReceiver() {
+        override fun onReceive(context: Context, intent: Intent) {
+            update(intent)
+        }
+    }
+
+    private fun update(intent: Intent) {
         // and now, some code for battery measurement, largely stolen from the
         // official docs.
         // http://developer.android.com/training/monitoring-device-state/battery-monitoring.html
 
-        try {
-            val ifilter = IntentFilter(Intent.ACTION_BATTERY_CHANGED)
+        with(intent) {
+            // Are we charging / charged?
+            val charging = when (getIntExtra(EXTRA_STATUS, -1)) {
+                BATTERY_STATUS_CHARGING, BATTERY_STATUS_FULL -> true
+                else -> false
+            }
+
+            // How are we charging?
+            //            val chargePlug = getIntExtra(BatteryManager.EXTRA_PLUGGED, -1)
+            //            val usbCharge = chargePlug == BatteryManager.BATTERY_PLUGGED_USB
+            //            val acCharge = chargePlug == BatteryManager.BATTERY_PLUGGED_AC
 
-            val intent = context.registerReceiver(null, ifilter)
-            if (intent == null) {
-                Log.w(TAG, "Failed to get intent from registerReceiver!")
+            val level = getIntExtra(EXTRA_LEVEL, -1)
+            val scale = getIntExtra(EXTRA_SCALE, -1)
+            if (level < 0 || scale <= 0) {
+                Log.w(TAG, "update: bogus battery level ($level / $scale), ignoring")
                 return
-            } else {
-                with(intent) {
-                    // Are we charging / charged?
-                    isCharging = when (getIntExtra(EXTRA_STATUS, -1)) {
-                        BATTERY_STATUS_CHARGING, BATTERY_STATUS_FULL -> true
-                        else -> false
-                    }
-
-                    // How are we charging?
-                    //            val chargePlug = getIntExtra(BatteryManager.EXTRA_PLUGGED, -1)
-                    //            val usbCharge = chargePlug == BatteryManager.BATTERY_PLUGGED_USB
-                    //            val acCharge = chargePlug == BatteryManager.BATTERY_PLUGGED_AC
-
-                    val level = getIntExtra(EXTRA_LEVEL, -1)
-                    val scale = getIntExtra(EXTRA_SCALE, -1)
-
-                    batteryPct = level / scale.toFloat()
-                }
             }
-        } catch (throwable: Throwable) {
-            // if something fails, we really don't care; whatever value as in batteryPct from
-            // last time is just fine for the next time
+
+            publish(charging, level / scale.toFloat())
+        }
+    }
+
+    private fun publish(charging: Boolean, level: Float) {
+        val oldState = state
+        val chargingChanged = charging != oldState.isCharging
+        val isWobble = !charging && level > oldState.level && level - oldState.level < RISE_HYSTERESIS
+        if (!chargingChanged && (level == oldState.level || isWobble)) return
+
+        val newState = BatteryState(level, charging)
+        state = newState
+
+        if (newState.indicator != oldState.indicator) {
+            Log.i(TAG, "publish: $newState, indicator changed")
+            ClockFace.invalidateAll(Invalidation.BATTERY)
+            CalWatchFaceService.redraw()
+        } else {
+            Log.v(TAG, "publish: $newState")
         }
     }
 
+    /** Call this when the watchface starts up. */
     fun init(context: Context) {
         Log.i(TAG, "init")
-        contextRef = WeakReference(context)
-        fetchStatus()
+        if (isReceiverRegistered) return
+
+        try {
+            // registering for a sticky broadcast hands us the current state right away
+            val intent = context.registerReceiver(receiver, IntentFilter(Intent.ACTION_BATTERY_CHANGED))
+            contextRef = WeakReference(context)
+            isReceiverRegistered = true
+            if (intent != null) update(intent) else Log.w(TAG, "init: no sticky battery intent?")
+        } catch (throwable: Throwable) {
+            // if something fails, we really don't care; we'll just assume a full battery
+            Log.e(TAG, "init: failed to register battery receiver", throwable)
+        }
+    }
+
+    /** Call this when the watchface is going away. */
+    fun stop() {
+        Log.i(TAG, "stop")
+        if (!isReceiverRegistered) return
+
+        try {
+            contextRef.get()?.unregisterReceiver(receiver)
+        } catch (e: IllegalArgumentException) {
+            Log.e(TAG, "stop: receiver wasn't registered?", e)
+        }
+        isReceiverRegistered = false
+        contextRef = WeakReference(null)
     }
 }
@@ -12,6 +12,8 @@ import android.graphics.Color
 import android.graphics.PorterDuff
 import android.graphics.Rect
 import android.os.Bundle
+import android.os.Handler
+import android.os.Looper
 import android.support.wearable.complications.ComplicationData
 import android.support.wearable.watchface.CanvasWatchFaceService
 import android.support.wearable.watchface.WatchFaceService
@@ -22,6 +24,7 @@ import android.view.SurfaceHolder
 import android.view.WindowInsets
 import java.lang.ref.WeakReference
 import org.dwallach.R
+import org.dwallach.calwatch2.StartupTrace.Phase
 import org.dwallach.complications.ComplicationWrapper
 import org.dwallach.complications.ComplicationWrapper.styleComplications
 
@@ -38,11 +41,22 @@ class CalWatchFaceService : CanvasWatchFaceService() {
     inner class Engine : CanvasWatchFaceService.Engine() {
         private lateinit var clockFace: ClockFace
         private var calendarFetcher: CalendarFetcher? = null
-
-        /** Call this if there's been a status update in the calendar permissions. */
-        fun calendarPermissionUpdate() {
-            Log.w(TAG, "calendarPermissionUpdate")
-
+        private val framePacer = FramePacer { invalidate() }
+
+        private val startupHandler = Handler(Looper.getMainLooper())
+        private val deferredStartup = Runnable { runDeferredStartup() }
+        private var deferredStartupDone = false
+
+        private var snapshotRestored = false
+
+        /**
+         * The cheap part of [calendarPermissionUpdate], which the first frame can't do without: check the
+         * permission and, on a fresh start, seed the ClockState from the snapshot we saved last time,
+         * if it's still valid. That's a permission lookup and a single mmap'd read. Without these,
+         * the first frames would show the "missing calendar" icon, and a tap would take the user to
+         * the PermissionActivity, even if they'd long since given us permission.
+         */
+        private fun checkCalendarPermission(): Boolean {
             val permissionGiven = CalendarPermission.check(this@CalWatchFaceService)
             if (!ClockState.calendarPermission && permissionGiven) {
                 // Hypothetically this isn't necessary, because it's handled in CalendarPermission.handleResult.
@@ -51,59 +65,114 @@ class CalWatchFaceService : CanvasWatchFaceService() {
                 ClockState.calendarPermission = true
             }
 
-            if (permissionGiven)
+            if (permissionGiven && !snapshotRestored) {
+                snapshotRestored = true
+                EventSnapshot.restore(this@CalWatchFaceService)
+            }
+
+            return permissionGiven
+        }
+
+        /** Call this if there's been a status update in the calendar permissions. */
+        fun calendarPermissionUpdate() {
+            Log.w(TAG, "calendarPermissionUpdate")
+
+            if (checkCalendarPermission())
                 calendarFetcher = CalendarFetcher(this@CalWatchFaceService)
         }
 
         override fun onCreate(holder: SurfaceHolder?) {
             Log.i(TAG, "onCreate")
+            StartupTrace.begin()
 
-            super.onCreate(holder)
+            // Everything here is on the critical path to the first frame, so we only do what we need
+            // to draw the face and the hands. Everything else waits for runDeferredStartup().
 
-            // announce our version number to the logs
-            VersionWrapper.logVersion(this@CalWatchFaceService)
-
-            // load any saved preferences
-            PreferencesHelper.loadPreferences(this@CalWatchFaceService)
-
-            // there were a lot more choices here for Wear1; this seems to do what we want
-            setWatchFaceStyle(
-                WatchFaceStyle.Builder(this@CalWatchFaceService)
-                    .setAccentColor(Color.YELLOW)
-                    .setStatusBarGravity(Gravity.CENTER)
-                    .setViewProtectionMode(WatchFaceStyle.PROTECT_WHOLE_SCREEN)
-                    .setShowUnreadCountIndicator(false) // would prefer true, but doesn't seem to work reliably
-                    .setHideNotificationIndicator(false)
-                    .setHideStatusBar(false)
-                    .setAcceptsTapEvents(true)
-                    .build()
-            )
-
-            BatteryWrapper.init(this@CalWatchFaceService)
-
-            val resources = this@CalWatchFaceService.resources
-
-            if (resources == null) {
-                Log.e(TAG, "no resources? not good")
+            StartupTrace.measure(Phase.SUPER_ON_CREATE) { super.onCreate(holder) }
+
+            StartupTrace.measure(Phase.PREFERENCES) {
+                // load any saved preferences
+                PreferencesHelper.loadPreferences(this@CalWatchFaceService)
+
+                PerfTrace.init(this@CalWatchFaceService)
             }
 
-            clockFace = ClockFace()
-            clockFace.missingCalendarDrawable = getDrawable(R.drawable.ic_empty_calendar)
+            StartupTrace.measure(Phase.WATCH_FACE_STYLE) {
+                // there were a lot more choices here for Wear1; this seems to do what we want
+                setWatchFaceStyle(
+                    WatchFaceStyle.Builder(this@CalWatchFaceService)
+                        .setAccentColor(Color.YELLOW)
+                        .setStatusBarGravity(Gravity.CENTER)
+                        .setViewProtectionMode(WatchFaceStyle.PROTECT_WHOLE_SCREEN)
+                        .setShowUnreadCountIndicator(false) // would prefer true, but doesn't seem to work reliably
+                        .setHideNotificationIndicator(false)
+                        .setHideStatusBar(false)
+                        .setAcceptsTapEvents(true)
+                        .build()
+                )
+            }
 
-            CalendarPermission.init(this@CalWatchFaceService)
+            StartupTrace.measure(Phase.CLOCK_FACE) {
+                val resources = this@CalWatchFaceService.resources
 
-            calendarPermissionUpdate()
+                if (resources == null) {
+                    Log.e(TAG, "no resources? not good")
+                }
 
-            // Note: this is the place where we specify which complications we want and don't want.
-            // We're deliberately disabling the bottom and left complications, since we draw our
-            // own background, and because the left complication is replaced with our built-in day/date
-            // rendering.
-            ComplicationWrapper.init(this@CalWatchFaceService, this, Constants.COMPLICATION_LOCATIONS)
-            styleComplications {
-                setBackgroundColorActive(PaintCan.COMPLICATION_BG_COLOR)
-                setBorderColorActive(PaintCan.COMPLICATION_FG_COLOR)
-                setBorderColorAmbient(PaintCan.COMPLICATION_FG_COLOR)
+                clockFace = ClockFace()
+                clockFace.missingCalendarDrawable = getDrawable(R.drawable.ic_empty_calendar)
             }
+
+            StartupTrace.measure(Phase.COMPLICATIONS) {
+                // Note: this is the place where we specify which complications we want and don't want.
+                // We're deliberately disabling the bottom and left complications, since we draw our
+                // own background, and because the left complication is replaced with our built-in day/date
+                // rendering.
+                ComplicationWrapper.init(this@CalWatchFaceService, this, Constants.COMPLICATION_LOCATIONS)
+                styleComplications {
+                    setBackgroundColorActive(PaintCan.COMPLICATION_BG_COLOR)
+                    setBorderColorActive(PaintCan.COMPLICATION_FG_COLOR)
+                    setBorderColorAmbient(PaintCan.COMPLICATION_FG_COLOR)
+                }
+            }
+
+            StartupTrace.measure(Phase.SNAPSHOT) { checkCalendarPermission() }
+
+            // Normally, the first onDraw() kicks off the rest of startup, but if we're created
+            // while invisible, there might not be a frame for a while, so this is the backstop.
+            startupHandler.postDelayed(deferredStartup, DEFERRED_STARTUP_TIMEOUT_MS)
+        }
+
+        /**
+         * The parts of startup that the first frame doesn't need: until this runs, the face draws
+         * the calendar from the saved snapshot (if we had one), doesn't notice calendar changes,
+         * and has no battery indicator. Reading the calendar itself happens in the background,
+         * inside [CalendarFetcher], so that still proceeds in parallel with drawing.
+         */
+        private fun runDeferredStartup() {
+            if (deferredStartupDone) return
+            deferredStartupDone = true
+            startupHandler.removeCallbacks(deferredStartup)
+
+            Log.i(TAG, "runDeferredStartup")
+
+            // announce our version number to the logs
+            StartupTrace.measure(Phase.VERSION) { VersionWrapper.logVersion(this@CalWatchFaceService) }
+
+            StartupTrace.measure(Phase.BATTERY) { BatteryWrapper.init(this@CalWatchFaceService) }
+
+            StartupTrace.measure(Phase.CALENDAR) {
+                CalendarPermission.init(this@CalWatchFaceService)
+                calendarPermissionUpdate()
+            }
+
+            // hourly calendar refreshes, timezone changes, etc.
+            StartupTrace.measure(Phase.TIME_SERVICE) { TimeService.start(this@CalWatchFaceService) }
+
+            StartupTrace.report()
+
+            // now we've got a battery level to draw
+            invalidate()
         }
 
         override fun onPropertiesChanged(properties: Bundle?) {
@@ -131,6 +200,7 @@ class CalWatchFaceService : CanvasWatchFaceService() {
             // this happens exactly once per minute; we're redrawing more often than that,
             // regardless, but this also provides a backstop if something is busted or buggy,
             // so we'll keep it in.
+            TimeService.onTimeTick()
             invalidate()
         }
 
@@ -140,16 +210,20 @@ class CalWatchFaceService : CanvasWatchFaceService() {
             Log.i(TAG, "onAmbientModeChanged: $inAmbientMode")
             clockFace.ambientMode = inAmbientMode
             ComplicationWrapper.updateAmbientMode(inAmbientMode)
+            PerfTrace.record(PerfTrace.Event.AMBIENT, if (inAmbientMode) 1 else 0)
 
             // If we just switched *to* ambient mode, then we've got some FPS data to report
             // to the logs. Otherwise, we're coming *back* from ambient mode, so it's a good
             // time to reset the counters.
-            if (inAmbientMode)
+            if (inAmbientMode) {
                 TimeWrapper.frameReport()
-            else
+                clockFace.reportLayers()
+            } else
                 TimeWrapper.frameReset()
 
-            Utilities.redrawEverything()
+            // The layers for each style are cached separately (see ClockFace), so there's
+            // nothing to wipe here, just a redraw in the new style.
+            invalidate()
         }
 
         /** Called when there is updated data for a complication id. */
@@ -160,7 +234,7 @@ class CalWatchFaceService : CanvasWatchFaceService() {
             Log.i(TAG, "onComplicationDataUpdate() id: $complicationId")
 
             ComplicationWrapper.updateComplication(complicationId, complicationData)
-            Utilities.redrawEverything()
+            Utilities.redrawEverything(Invalidation.COMPLICATION)
         }
 
         override fun onInterruptionFilterChanged(interruptionFilter: Int) {
@@ -179,6 +253,7 @@ class CalWatchFaceService : CanvasWatchFaceService() {
                 oldWidth = width
                 oldHeight = height
                 clockFace.setSize(width, height)
+                framePacer.setSize(width, height)
                 ComplicationWrapper.updateBounds(width, height)
             }
         }
@@ -186,13 +261,14 @@ class CalWatchFaceService : CanvasWatchFaceService() {
         override fun onSurfaceChanged(holder: SurfaceHolder?, format: Int, width: Int, height: Int) {
             super.onSurfaceChanged(holder, format, width, height)
 
-            updateBounds(width, height)
-            Utilities.redrawEverything()
+            updateBounds(width, height) // setSize() takes care of invalidating anything size-dependent
+            invalidate()
         }
 
         override fun onDraw(canvas: Canvas?, bounds: Rect?) {
             //                Log.v(TAG, "onDraw")
             drawCounter++
+            val onDrawStart = TimeWrapper.phaseStart()
 
             if (bounds == null || canvas == null) {
                 Log.d(TAG, "onDraw: null bounds and/or canvas")
@@ -208,13 +284,25 @@ class CalWatchFaceService : CanvasWatchFaceService() {
                 TimeWrapper.update() // fetch the time
                 clockFace.drawEverything(canvas)
 
-                // Draw every frame as long as we're visible and doing the sweeping second hand,
-                // otherwise the timer will take care of it.
+                // As long as we're visible and doing the sweeping second hand, the FramePacer decides
+                // when the next frame is worth drawing; otherwise the timer will take care of it.
                 if (isVisible && ClockState.subSecondRefreshNeeded(clockFace))
-                    invalidate()
+                    framePacer.scheduleNext(TimeWrapper.localTime)
+                else
+                    framePacer.cancel()
             } catch (t: Throwable) {
                 if (drawCounter % 1000 == 0L)
                     Log.e(TAG, "Something blew up while drawing", t)
+            } finally {
+                TimeWrapper.onDrawEnd(onDrawStart)
+
+                if (!StartupTrace.firstFrameDrawn) {
+                    StartupTrace.firstFrame(onDrawStart)
+
+                    // the first frame is on the screen, so we can get on with the rest of startup
+                    startupHandler.removeCallbacks(deferredStartup)
+                    startupHandler.post(deferredStartup)
+                }
             }
         }
 
@@ -245,7 +333,13 @@ class CalWatchFaceService : CanvasWatchFaceService() {
         override fun onDestroy() {
             Log.v(TAG, "onDestroy")
 
+            startupHandler.removeCallbacks(deferredStartup)
             calendarFetcher?.kill()
+            framePacer.cancel()
+            TimeService.stop()
+            BatteryWrapper.stop()
+            SharedLayerCache.clear()
+            PerfTrace.flush()
 
             super.onDestroy()
         }
@@ -259,7 +353,7 @@ class CalWatchFaceService : CanvasWatchFaceService() {
                 Log.v(TAG, "onApplyWindowInsets (round: $round), (chinSize: $missingBottomPixels)")
             }
 
-            Utilities.redrawEverything()
+            invalidate()
         }
 
         override fun onVisibilityChanged(visible: Boolean) {
@@ -267,6 +361,8 @@ class CalWatchFaceService : CanvasWatchFaceService() {
 
             if (visible) {
                 invalidate()
+            } else {
+                framePacer.cancel()
             }
 
             // If we just switched *to* not visible mode, then we've got some FPS data to report
@@ -282,6 +378,9 @@ class CalWatchFaceService : CanvasWatchFaceService() {
     companion object {
         private var engineRef: WeakReference<Engine>? = null
 
+        // if we never get to draw a first frame, start the rest of the engine after this long anyway
+        private const val DEFERRED_STARTUP_TIMEOUT_MS = 1000L
+
         val engine: Engine?
             get() = engineRef?.get()
 
@@ -0,0 +1,93 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+package org.dwallach.calwatch2
+
+import android.os.Process
+import android.os.SystemClock
+import android.util.Log
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.asCoroutineDispatcher
+
+private val TAG = "CalendarDispatcher"
+
+/**
+ * All of our calendar I/O and layout work runs here, on a single background-priority thread, rather
+ * than on [kotlinx.coroutines.Dispatchers.Default]. That pool has as many threads as there are cores,
+ * and on a dual-core watch, a calendar sync burst would land right on top of the watchface's draw
+ * thread. One thread is plenty: the work is strictly sequential anyway, courtesy of [RescanScheduler].
+ *
+ * We also keep track of how deep the queue gets and how long tasks wait before they run, which
+ * tells us whether one thread is really enough.
+ */
+object CalendarDispatcher {
+    private val threadCounter = AtomicInteger(0)
+
+    private val executor = Executors.newSingleThreadExecutor { runnable ->
+        Thread({
+            // this has to happen on the thread itself; Thread.setPriority doesn't map onto Linux nice levels
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND)
+            runnable.run()
+        }, "CalWatch-calendar-${threadCounter.incrementAndGet()}").apply { isDaemon = true }
+    }
+
+    private val queueDepth = AtomicInteger(0)
+    private val maxQueueDepth = AtomicInteger(0)
+    private val tasksRun = AtomicLong(0)
+    private val totalWaitNanos = AtomicLong(0)
+    private val maxWaitNanos = AtomicLong(0)
+
+    private val instrumentedExecutor = Executor { task ->
+        val enqueueTime = SystemClock.elapsedRealtimeNanos()
+        val depth = queueDepth.incrementAndGet()
+        raiseTo(maxQueueDepth, depth)
+
+        executor.execute {
+            val waitNanos = SystemClock.elapsedRealtimeNanos() - enqueueTime
+            queueDepth.decrementAndGet()
+            tasksRun.incrementAndGet()
+            totalWaitNanos.addAndGet(waitNanos)
+            raiseTo(maxWaitNanos, waitNanos)
+
+            task.run()
+        }
+    }
+
+    // accumulateAndGet() would be nicer, but it's not available on SDK23
+    private fun raiseTo(max: AtomicInteger, value: Int) {
+        do {
+            val current = max.get()
+        } while (value > current && !max.compareAndSet(current, value))
+    }
+
+    private fun raiseTo(max: AtomicLong, value: Long) {
+        do {
+            val current = max.get()
+        } while (value > current && !max.compareAndSet(current, value))
+    }
+
+    /** Use this with withContext() or as part of a CoroutineScope for anything calendar-related. */
+    val dispatcher: CoroutineDispatcher = instrumentedExecutor.asCoroutineDispatcher()
+
+    /** Number of tasks currently waiting to run. */
+    val currentQueueDepth: Int
+        get() = queueDepth.get()
+
+    /** Logs the queue depth and wait-time metrics. */
+    fun report() {
+        val n = tasksRun.get()
+        val avgWaitMs = if (n == 0L) 0.0 else totalWaitNanos.get() / n / 1000000.0
+        Log.i(TAG,
+            "tasks: $n, queue depth now/max: ${queueDepth.get()}/${maxQueueDepth.get()}, wait avg/max (ms): %.3f / %.3f"
+                .format(avgWaitMs, maxWaitNanos.get() / 1000000.0)
+        )
+    }
+}
@@ -23,9 +23,9 @@ import java.lang.ref.WeakReference
 import kotlin.comparisons.compareBy
 import kotlin.comparisons.thenBy
 import kotlin.comparisons.thenByDescending
+import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.GlobalScope
-import kotlinx.coroutines.launch
+import kotlinx.coroutines.ensureActive
 import kotlinx.coroutines.withContext
 
 private val TAG = "CalendarFetcher"
@@ -42,20 +42,29 @@ private val TAG = "CalendarFetcher"
  * when the calendar itself changes. External users can call [CalendarFetcher.requestRescan], which will cause
  * the most recently created CalendarFetcher instance to do the work. This is something worth doing at the top
  * of the hour, when it's time to update the local view of the calendar.
+ *
+ * Rescan requests go through a [RescanScheduler], which debounces bursts of broadcasts
+ * within [rescanDebounceMillis] and guarantees that a request arriving mid-scan gets
+ * exactly one trailing rescan, rather than being dropped on the floor.
  */
 class CalendarFetcher(
     initialContext: Context,
     private val contentUri: Uri = WearableCalendarContract.Instances.CONTENT_URI,
     private val authority: String = WearableCalendarContract.AUTHORITY,
-    private val backupAuthority: String = CalendarContract.AUTHORITY
+    private val backupAuthority: String = CalendarContract.AUTHORITY,
+    rescanDebounceMillis: Long = DEFAULT_RESCAN_DEBOUNCE_MILLIS
 ) {
 
     private val contextRef = WeakReference(initialContext)
     private var isReceiverRegistered: Boolean = false
     private val instanceID = ++instanceCounter
 
+    // A calendar change that lands mid-scan means what we're reading is already stale, so there's no
+    // point finishing the layout and publishing it; runLoader() checks for cancellation between steps.
+    private val scheduler = RescanScheduler(rescanDebounceMillis, cancelSuperseded = true) { runLoader() }
+
     override fun toString() =
-        "CalendarFetcher(contextRef(%s), authority($authority), contentUri($contentUri), isReceiverRegistered($isReceiverRegistered), instanceId($instanceID))"
+        "CalendarFetcher(contextRef(%s), authority($authority), contentUri($contentUri), isReceiverRegistered($isReceiverRegistered), instanceId($instanceID), $scheduler)"
             .format(if (contextRef.get() == null) "null" else "non-null")
 
     private fun onReceiveBroadcastHandler(context: Context, intent: Intent, authority: String) {
@@ -71,7 +80,7 @@ class CalendarFetcher(
             // Solution? Screw it. Whatever we get, we don't care, we'll reload the calendar.
 
             Log.i(TAG, "broadcastReceiver: time to load new calendar data")
-            rescan(context)
+            rescan()
         } else {
             Log.w(TAG, "broadcastReceiver: IGNORING INTENT: action(${intent.action}), data(${intent.data}), toString($intent), authority($authority)")
         }
@@ -79,9 +88,8 @@ class CalendarFetcher(
 
     // Why do we have two separate BroadcastReceiver instances? In part, because we were mysteriously
     // not receiving these intents at one point and this was a form of paranoia. Also, it doesn't seem
-    // to hurt anything. If, for whatever broken reason, both receivers get triggered, then the first
-    // one will launch the background task to read the calendar, and the second will notice that the
-    // first one is in progress and will become a no-op.
+    // to hurt anything. If, for whatever broken reason, both receivers get triggered, the scheduler's
+    // debounce window folds them together into a single scan.
 
     private val broadcastReceiver = object : BroadcastReceiver() {
         override fun onReceive(context: Context, intent: Intent) = onReceiveBroadcastHandler(context, intent, authority)
@@ -114,16 +122,17 @@ class CalendarFetcher(
 
         isReceiverRegistered = true
 
-        // kick off initial loading of calendar state
-        rescan(initialContext)
+        // kick off initial loading of calendar state, no need to wait out the debounce window
+        rescan(immediate = true)
     }
 
     private fun getContext(): Context? = contextRef.get()
 
     /**
      * Call this when the CalendarFetcher is no longer going to be used. This will get rid
-     * of broadcast receivers and other such things. Once you do this, the CalendarFetcher
-     * cannot be used any more. Make a new one if you want to restart things later.
+     * of broadcast receivers and other such things, and it will cancel any scan that's still
+     * running. Once you do this, the CalendarFetcher cannot be used any more. Make a new one
+     * if you want to restart things later.
      */
     fun kill() {
         Log.w(TAG, "killing, state = $currentState")
@@ -136,28 +145,24 @@ class CalendarFetcher(
         }
 
         isReceiverRegistered = false
+        scheduler.close()
     }
 
     /**
      * This will start asynchronously loading the calendar. The results will eventually arrive
-     * in [ClockState]. Safe to call this if a scan is already ongoing.
+     * in [ClockState]. Safe to call this if a scan is already ongoing; the [RescanScheduler]
+     * will coalesce it into a single trailing rescan.
      */
-    private fun rescan(context: Context? = null) {
+    private fun rescan(immediate: Boolean = false) {
         if (!isReceiverRegistered) {
             // this means that we're reusing a `killed` CalendarFetcher, which is bad, because it
-            // won't be listening to the broadcasts any more. Log so we can discover it, but otherwise
-            // continue running. At least it will update once an hour...
+            // won't be listening to the broadcasts any more, and its scheduler is shut down. Log
+            // so we can discover it.
             Log.e(TAG, "rescan: no receiver registered! (CalendarFetcher #$instanceID)")
         }
 
-        if (scanInProgress) {
-            Log.w(TAG, "rescan: scan in progress, not doing another scan! (CalendarFetcher #$instanceID)")
-            return
-        } else {
-            Log.i(TAG, "rescan: starting asynchronously (CalendarFetcher #$instanceID)")
-            scanInProgress = true
-            runAsyncLoader(context ?: getContext())
-        }
+        Log.i(TAG, "rescan: requesting (CalendarFetcher #$instanceID)")
+        scheduler.request(immediate)
     }
 
     /**
@@ -268,46 +273,26 @@ class CalendarFetcher(
         } catch (e: SecurityException) {
             Log.w(TAG, "unexpected security exception while reading calendar", e)
             kill()
-            scanInProgress = false
             ClockState.calendarPermission = false
             return null
         }
 
-        // Sorting priorities:
-
-        // Priority #1: event duration, bucketed into three-hour chunks, short events first
-        //   (goal: get the short events to coalesce into the same level, using integer
-        //    division because we only want to segregate "big" events from "small" events,
-        //    otherwise we want to sort against the priorities below)
-
-        // Priority #2: color, so events from the same calendar will become consecutive wedges
-
-        // Priority #3: endTime, with objects ending earlier appearing first in the sort.
-        //   (goal: first fill in the outer ring of the display with smaller wedges; the big
-        //    ones will end late in the day, and will thus end up on the inside of the watchface)
-
-        // Priority #4: startTime, with objects starting later (smaller) appearing first in the sort.
-
-        return cr.sortedWith(
-            compareBy<CalendarEvent> { (it.endTime - it.startTime) / 3.hours }
-                .thenBy { it.displayColor }
-                .thenBy { it.endTime }
-                .thenByDescending { it.startTime })
+        return sortForLayout(cr)
     }
 
     /**
-     * Starts an asynchronous task to load the calendar. This function returns immediately,
-     * eventually updating the state in [ClockState],
+     * Loads the calendar and updates the state in [ClockState]. This runs inside the
+     * [RescanScheduler]'s scope, which will cancel it if a newer request supersedes it.
      */
-    private fun runAsyncLoader(context: Context?) {
+    private suspend fun CoroutineScope.runLoader() {
+        val context = getContext()
         if (context == null) {
-            Log.e(TAG, "runAsyncLoader: no context, cannot load calendar")
-            scanInProgress = false
+            Log.e(TAG, "runLoader: no context, cannot load calendar")
             return
         }
 
-        if (this != singletonFetcher)
-            Log.w(TAG, "runAsyncLoader: not using the singleton fetcher! (CalendarFetcher me #$instanceID), singleton #${singletonFetcher?.instanceID})")
+        if (this@CalendarFetcher != singletonFetcher)
+            Log.w(TAG, "runLoader: not using the singleton fetcher! (CalendarFetcher me #$instanceID), singleton #${singletonFetcher?.instanceID})")
 
         // Behold! The power of Kotlin 1.3's coroutines, with bonus wildly incomplete documentation!
         // https://github.com/Kotlin/kotlinx.coroutines/blob/master/ui/coroutines-guide-ui.md
@@ -318,81 +303,193 @@ class CalendarFetcher(
         // There are two universes in Kotlin: the "regular" universe and the "suspend" universe.
 
         // In the "suspend" universe, functions and methods know how to suspend themselves and
-        // save behind a continuation so they can resume later. The call to GlobalScope.launch
-        // is one bridge from the "regular" universe to the "suspend" universe where we can call
+        // save behind a continuation so they can resume later. The RescanScheduler's launch is
+        // our bridge from the "regular" universe to the "suspend" universe where we can call
         // things that might want to go in the background, including regular functions as
         // well as "suspend" functions and other stuff.
 
         // The call to withContext() creates a task that happily runs in the background, on
-        // a worker thread, that will eventually return a value that we'll read "here", which
-        // might yet another worker thread when we get back, even though it's starting off
-        // (most likely) on the UI thread. This switching trick is only possible when we're
-        // in the "suspend" universe, but note that we don't have to declare any "suspend"
-        // functions nor do we have to call await() for the results to come back. That's
-        // all handled by withContext().
-
-        // TODO: replace GlobalScope with something more app-specific.
-        //   See: https://medium.com/androiddevelopers/coroutines-patterns-for-work-that-shouldnt-be-cancelled-e26c40f142ad
-
-        GlobalScope.launch {
-            // Everything in this block will execute on a background thread. The original
-            // function, runAsyncLoader(), will return immediately.
-
-            Log.i(TAG, "runAsyncLoader: here we go! (CalendarFetcher #$instanceID)")
-
-            val result = withContext(Dispatchers.Default) {
-                val startTimeNano = SystemClock.elapsedRealtimeNanos()
-                val eventList = loadContent(context)
-                val endTimeNano = SystemClock.elapsedRealtimeNanos()
-                Log.i(TAG, "runAsyncLoader: total calendar fetch time: %.3f ms".format((endTimeNano - startTimeNano) / 1000000.0))
-
-                if (eventList == null) {
-                    Log.w(TAG, "runAsyncLoader: No result, not updating any calendar state (CalendarFetcher #$instanceID)")
+        // a worker thread, that will eventually return a value that we'll read "here". This
+        // switching trick is only possible when we're in the "suspend" universe, but note that
+        // we don't have to call await() for the results to come back. That's all handled by
+        // withContext(). Bonus: withContext() also checks for cancellation on the way out,
+        // so a superseded scan won't make it to the UI thread.
+
+        Log.i(TAG, "runLoader: here we go! (CalendarFetcher #$instanceID)")
+
+        // All the heavy lifting happens on our own low-priority thread, so it doesn't fight with the watchface's
+        // draw thread (see CalendarDispatcher). The RescanScheduler's scope is already running there, but
+        // we're being explicit about it.
+        val result = withContext(CalendarDispatcher.dispatcher) {
+            val startTimeNano = SystemClock.elapsedRealtimeNanos()
+            val eventList = loadContent(context)
+            val endTimeNano = SystemClock.elapsedRealtimeNanos()
+            Log.i(TAG, "runLoader: total calendar fetch time: %.3f ms".format((endTimeNano - startTimeNano) / 1000000.0))
+            PerfTrace.record(PerfTrace.Event.FETCH, endTimeNano - startTimeNano)
+
+            if (eventList == null) {
+                Log.w(TAG, "runLoader: No result, not updating any calendar state (CalendarFetcher #$instanceID)")
+                null
+            } else {
+                Log.i(TAG, "runLoader: success reading the calendar (CalendarFetcher #$instanceID)")
+
+                // no sense doing the layout if somebody already asked for a fresh scan
+                ensureActive()
+
+                // the layout is computed relative to the current hour and timezone, which the snapshot needs to know
+                val localFloorHour = TimeWrapper.localFloorHour
+                val gmtOffset = TimeWrapper.gmtOffset
+
+                val clippedEvents = EventLayoutUniform.clip(eventList)
+                val contentHash = contentHash(clippedEvents, contentHash(eventList))
+                val previous = lastPublished
+
+                if (previous != null && previous.contentHash == contentHash) {
+                    // Nothing we'd draw has changed, so there's no point in redoing the layout or in
+                    // throwing away all the cached geometry. This happens a lot: the provider fires
+                    // off broadcasts for all sorts of reasons, and the hourly rescan often finds nothing new.
+                    val unchanged = ++unchangedScans
+                    Log.i(TAG, "runLoader: events unchanged, skipping layout (unchanged: $unchanged, changed: $changedScans)")
+
+                    // the snapshot is only valid for the hour it was saved in, so keep it fresh
+                    if (previous.localFloorHour != localFloorHour || previous.gmtOffset != gmtOffset) {
+                        EventSnapshot.save(context, eventList, previous.layoutResult, localFloorHour, gmtOffset)
+                        lastPublished = previous.copy(localFloorHour = localFloorHour, gmtOffset = gmtOffset)
+                    }
                     null
                 } else {
-                    Log.i(TAG, "runAsyncLoader: success reading the calendar (CalendarFetcher #$instanceID)")
                     val startTimeNano2 = SystemClock.elapsedRealtimeNanos()
-                    val layoutResult = EventLayoutUniform.clipToVisible(eventList)
+                    val layoutResult = EventLayoutUniform.layout(clippedEvents)
                     val endTimeNano2 = SystemClock.elapsedRealtimeNanos()
 
-                    Log.i(TAG, "runAsyncLoader: total calendar layout time: %.3f ms".format((endTimeNano2 - startTimeNano2) / 1000000.0))
-                    Pair(eventList, layoutResult)
+                    Log.i(TAG, "runLoader: total calendar layout time: %.3f ms".format((endTimeNano2 - startTimeNano2) / 1000000.0))
+                    PerfTrace.record(PerfTrace.Event.LAYOUT, endTimeNano2 - startTimeNano2, clippedEvents.size)
+
+                    // save it for next time the process starts up, so we don't have to begin with an empty watchface
+                    EventSnapshot.save(context, eventList, layoutResult, localFloorHour, gmtOffset)
+
+                    // and while we're still in the background, turn the layout into Paths, so the
+                    // UI thread doesn't have to (see WedgeGeometry)
+                    ensureActive()
+                    val geometry = WedgeGeometry.buildForSurface(layoutResult)
+
+                    Triple(eventList, Published(contentHash, localFloorHour, gmtOffset, layoutResult), geometry)
                 }
             }
+        }
 
-            if (result != null) {
-                // This last part really needs to happen on the UI thread, otherwise things get crashy.
-                // Dispatchers.Main gets us the Android UI thread.
+        if (result != null) {
+            val (eventList, published, geometry) = result
 
-                withContext(Dispatchers.Main) {
-                    Log.i(TAG, "runAsyncLoader: updating world state (should be on UI thread now)")
-                    ClockState.setEventList(result.first, result.second)
-                    Utilities.redrawEverything()
-                }
+            // ClockState publishes an immutable FaceModel with an atomic swap, so this is safe to do from
+            // here. We just need to make sure a superseded scan doesn't publish anything.
+            ensureActive()
+            val faceModel = ClockState.setEventList(eventList, published.layoutResult, geometry)
+
+            // only remember the hash once it's actually been published
+            lastPublished = published
+            Log.i(TAG, "runLoader: published $faceModel (unchanged: $unchangedScans, changed: ${++changedScans})")
+
+            // Asking for a redraw needs to happen on the UI thread, otherwise things get crashy.
+            // Dispatchers.Main gets us the Android UI thread. ClockFace would notice the new FaceModel
+            // on its own, but saying why lets it drop exactly the calendar caches and nothing else.
+            withContext(Dispatchers.Main) {
+                ClockFace.invalidateAll(Invalidation.CALENDAR)
+                CalWatchFaceService.redraw()
             }
+        }
+
+        Log.i(TAG, "runLoader: background tasks complete (CalendarFetcher #$instanceID)")
+        CalendarDispatcher.report()
+    }
+
+    /** What we last handed over to [ClockState], so we can tell if a new scan found anything new. */
+    private data class Published(
+        val contentHash: Long,
+        val localFloorHour: Long,
+        val gmtOffset: Int,
+        val layoutResult: Pair<List<EventWrapper>, Int>
+    )
 
-            scanInProgress = false
-            Log.i(TAG, "runAsyncLoader: background tasks complete (CalendarFetcher #$instanceID)")
+    /**
+     * A 64-bit content hash of a list of events (FNV-1a over the fields we care about),
+     * optionally chained from a previous hash.
+     */
+    private fun contentHash(events: List<CalendarEvent>, seed: Long = FNV_OFFSET_BASIS): Long {
+        var hash = seed
+        fun mix(value: Long) {
+            hash = (hash xor value) * FNV_PRIME
         }
 
-        Log.i(TAG, "runAsyncLoader: Heading back to uiThread; async task now running (CalendarFetcher #$instanceID)")
+        mix(events.size.toLong())
+        events.forEach {
+            mix(it.startTime)
+            mix(it.endTime)
+            mix(it.displayColor.toLong())
+        }
+        return hash
     }
 
     companion object {
+        private const val FNV_OFFSET_BASIS = -0x340d631b7bdddcdbL // 0xcbf29ce484222325
+        private const val FNV_PRIME = 0x100000001b3L
+
+        /**
+         * Broadcasts that arrive within this window of each other are folded into a single scan.
+         * The provider tends to fire several intents for a single sync, and we listen on two authorities.
+         */
+        const val DEFAULT_RESCAN_DEBOUNCE_MILLIS = 500L
+
         // Declaring these volatile is probably overkill, but they may be read from different threads, so
-        // we want changes to propagate immediately. scanInProgress is particularly important for this,
-        // since it's how we prevent running multiple simultaneous queries to the calendar provider.
+        // we want changes to propagate immediately. (Preventing simultaneous queries to the calendar
+        // provider is now the job of each fetcher's RescanScheduler, and kill() shuts that down when
+        // a new singleton takes over.)
         @Volatile
         private var singletonFetcher: CalendarFetcher? = null
         @Volatile
-        private var scanInProgress: Boolean = false
-        @Volatile
         private var instanceCounter: Int = -1 // ID numbers for tracking / better logging
         @Volatile
         private var fetchCounter: Int = -1 // ID numbers for tracking / better logging
 
+        // Change detection: this is shared across fetcher instances, since ClockState is too.
+        @Volatile
+        private var lastPublished: Published? = null
+
+        /** Number of scans that found nothing new, so we skipped the layout and didn't redraw anything. */
+        @Volatile
+        var unchangedScans: Int = 0
+            private set
+
+        /** Number of scans that found changes and published them to [ClockState]. */
+        @Volatile
+        var changedScans: Int = 0
+            private set
+
         private val currentState: String
-            get() = "singletonFetcher($singletonFetcher), scanInProgress($scanInProgress), instanceCounter($instanceCounter)"
+            get() = "singletonFetcher($singletonFetcher), instanceCounter($instanceCounter), unchangedScans($unchangedScans), changedScans($changedScans)"
+
+        /**
+         * Puts the events in the order the layout wants them. Sorting priorities:
+         *
+         * Priority #1: event duration, bucketed into three-hour chunks, short events first
+         *   (goal: get the short events to coalesce into the same level, using integer
+         *    division because we only want to segregate "big" events from "small" events,
+         *    otherwise we want to sort against the priorities below)
+         *
+         * Priority #2: color, so events from the same calendar will become consecutive wedges
+         *
+         * Priority #3: endTime, with objects ending earlier appearing first in the sort.
+         *   (goal: first fill in the outer ring of the display with smaller wedges; the big
+         *    ones will end late in the day, and will thus end up on the inside of the watchface)
+         *
+         * Priority #4: startTime, with objects starting later (smaller) appearing first in the sort.
+         */
+        fun sortForLayout(events: List<CalendarEvent>): List<CalendarEvent> =
+            events.sortedWith(
+                compareBy<CalendarEvent> { (it.endTime - it.startTime) / 3.hours }
+                    .thenBy { it.displayColor }
+                    .thenBy { it.endTime }
+                    .thenByDescending { it.startTime })
 
         fun requestRescan() {
             Log.i(TAG, "requestRescan: $currentState")
@@ -9,25 +9,28 @@ package org.dwallach.calwatch2
 import android.graphics.Canvas
 import android.graphics.Paint
 import android.graphics.Path
-import android.graphics.RectF
 import android.graphics.drawable.Drawable
+import android.os.Debug
 import android.util.Log
+import androidx.annotation.VisibleForTesting
 import java.util.WeakHashMap
 import kotlin.math.PI
 import kotlin.math.asin
-import kotlin.math.cos
 import kotlin.math.floor
 import kotlin.math.pow
 import kotlin.math.sin
-import org.dwallach.calwatch2.BatteryWrapper.batteryPct
 import org.dwallach.calwatch2.ClockState.FACE_LITE
 import org.dwallach.calwatch2.ClockState.FACE_NUMBERS
 import org.dwallach.calwatch2.ClockState.FACE_TOOL
 import org.dwallach.calwatch2.ClockState.calendarPermission
 import org.dwallach.calwatch2.ClockState.showDayDate
 import org.dwallach.calwatch2.ClockState.showSeconds
+import org.dwallach.calwatch2.LayerCompositor.Companion.KEY_SEED
+import org.dwallach.calwatch2.LayerCompositor.Companion.mix
+import org.dwallach.calwatch2.LayerCompositor.Layer
 import org.dwallach.calwatch2.PaintCan.Brush
 import org.dwallach.calwatch2.PaintCan.Style
+import org.dwallach.calwatch2.TimeWrapper.Phase
 import org.dwallach.complications.ComplicationLocation.BOTTOM
 import org.dwallach.complications.ComplicationLocation.LEFT
 import org.dwallach.complications.ComplicationLocation.RIGHT
@@ -52,21 +55,54 @@ class ClockFace(private val configMode: Boolean = false) {
     private var cy = DEFAULT_CY
     private var oldCy = -1
     private var radius = DEFAULT_RADIUS
+    private var surfaceWidth = DEFAULT_CX * 2
+    private var surfaceHeight = DEFAULT_CY * 2
+
+    // precomputed trig for the current size, rebuilt in setSize() and whenever the flat bottom changes
+    private val dial = DialTables().apply { update(DEFAULT_CX, DEFAULT_CY, DEFAULT_RADIUS, 0) }
 
     private var flatBottomCornerTime = 30f // Moto 360 hack: set to < 30.0 seconds for where the flat bottom starts
 
-    private var eventList: List<EventWrapper> = emptyList()
-    private var maxLevel: Int = 0
+    private var faceModel: FaceModel = FaceModel.EMPTY
 
     private var paintCan: PaintCan = PaintCan(400f) // initial value, will be overridden by setSize()
 
     private var drawStyle = Style.NORMAL // see updateDrawStyle
 
+    // Offscreen bitmaps for everything that doesn't move every frame, one set per drawing style, so
+    // the ambient and low-bit variants survive trips in and out of ambient mode. The render functions
+    // are allocated once, here, so drawing a cached layer doesn't allocate anything.
+    private val compositor = LayerCompositor(Style.values().size)
+    private val calendarRenderer: (Canvas) -> Unit = {
+        noteRebuild(Cache.CALENDAR_LAYER)
+        drawCalendar(it)
+    }
+    private val faceRenderer: (Canvas) -> Unit = {
+        noteRebuild(Cache.FACE_LAYER)
+        drawFace(it)
+    }
+    private val monthBoxRenderer: (Canvas) -> Unit = {
+        noteRebuild(Cache.MONTH_BOX_LAYER)
+        drawMonthBox(it)
+    }
+
+    // all the text on the face, converted to paths once rather than shaped on every draw
+    private val glyphs = GlyphCache()
+
+    // For each cache, the reason it was last dropped (or NO_REASON), and counts of how many times
+    // each cache was rebuilt for each reason, with one extra slot at the end for rebuilds that
+    // weren't due to an invalidation (first use, a layer key changing, etc.).
+    private val pendingReason = IntArray(Cache.values().size) { NO_REASON }
+    private val rebuildCounts = IntArray(Cache.values().size * (Invalidation.values().size + 1))
+
     // dealing with the "flat tire" a.k.a. "chin" of Moto 360 and any other watches that pull the same trick
     var missingBottomPixels = 0
         set(newVal) {
+            val oldVal = field
             field = if (FORCE_MOTO_FLAT_BOTTOM) 30 else newVal
+            dial.update(cx, cy, radius, field)
             computeFlatBottomCorners()
+            if (field != oldVal) invalidate(Invalidation.SIZE)
         }
 
     /** Tell the clock face if we're in "mute" mode. For now, we don't care. */
@@ -103,7 +139,6 @@ class ClockFace(private val configMode: Boolean = false) {
         faceRefMap[this] = true // weak references to all ClockFace instances
         instanceID = instanceCounter++
         Log.v(TAG, "ClockFace setup, instance($instanceID)")
-        wipeAllCaches() // paranoia
 
         missingBottomPixels = 0 // just to get things started; flat bottom detection happens later
     }
@@ -143,8 +178,9 @@ class ClockFace(private val configMode: Boolean = false) {
      * needs to draw the background and nothing else.
      */
     fun drawBackgroundOnly(canvas: Canvas) {
-        drawFace(canvas)
-        if (showDayDate) drawMonthBox(canvas)
+        SharedLayerCache.draw(canvas, Layer.FACE, surfaceWidth, surfaceHeight, faceLayerKey(), faceRenderer)
+        if (showDayDate)
+            SharedLayerCache.draw(canvas, Layer.MONTH_BOX, surfaceWidth, surfaceHeight, monthBoxLayerKey(), monthBoxRenderer)
     }
 
     /**
@@ -155,11 +191,13 @@ class ClockFace(private val configMode: Boolean = false) {
     fun drawEverything(canvas: Canvas) {
         TimeWrapper.frameStart()
 
+        // In ambient mode, this runs once a minute and what we care about is how much CPU it burns,
+        // rather than how long it takes, so we measure thread CPU time as well.
+        val ambientCpuStart = if (drawStyle != Style.NORMAL) Debug.threadCpuTimeNanos() else -1L
+
         try {
-            // This will start an asynchronous query to update the calendar state; we're doing this on
-            // every screen refresh because it's dirt cheap and we want to be current. (This call eventually
-            // dives down into CalendarFetcher where it will check if the hour has changed since the last
-            // refresh. If not, it becomes a no-op.)
+            // Pick up the latest calendar state; we're doing this on every screen refresh because it's
+            // dirt cheap and we want to be current. (The hourly refresh itself is scheduled by TimeService.)
             updateEventList()
 
             val currentTimeMillis = TimeWrapper.gmtTime
@@ -183,54 +221,111 @@ class ClockFace(private val configMode: Boolean = false) {
 
             // NOTE: We used to also do this for the "AMBIENT" style, but we're removing it so
             // more of the screen is black, and thus we save power on OLED screens.
-            if (drawStyle == Style.NORMAL) drawCalendar(canvas)
+            //
+            // The calendar, the face, and the month box are each cached in an offscreen bitmap
+            // (see LayerCompositor), which only gets re-rendered when its key changes. The hands
+            // are the only thing we're really drawing from scratch on every frame.
+            //
+            // Each phase is timed separately (see TimeWrapper.Phase), so we can see which one is
+            // responsible when a frame runs long.
+            var phaseStart = TimeWrapper.phaseStart()
+            if (drawStyle == Style.NORMAL) {
+                updateCalendarGeometry()
+                compositor.draw(canvas, Layer.CALENDAR, drawStyle.ordinal, calendarLayerKey(), calendarRenderer)
+                TimeWrapper.phaseEnd(Phase.CALENDAR, phaseStart)
+            }
 
             // next, we draw the indices or numbers of the watchface
-            drawFace(canvas)
+            phaseStart = TimeWrapper.phaseStart()
+            SharedLayerCache.draw(canvas, Layer.FACE, surfaceWidth, surfaceHeight, faceLayerKey(), faceRenderer)
+            TimeWrapper.phaseEnd(Phase.FACE, phaseStart)
 
             // Next up, the step counter and battery meter.
 
             // We disable the battery meter when we're in ambientMode with burnInProtection, since
             // we don't want to burn a hole in the very center of the screen.
-            if (!burninProtectionMode()) drawBattery(canvas)
+            if (!burninProtectionMode()) {
+                phaseStart = TimeWrapper.phaseStart()
+                drawBattery(canvas)
+                TimeWrapper.phaseEnd(Phase.BATTERY, phaseStart)
+            }
 
             // We're drawing the complications *before* the hands. We tried it after, but it
             // looks awful in ambient mode.
 
             // (If we don't have calendar permission, then we'll be insisting on that before
             // we do any complications. Any click will cause a permission dialog. Good UX?)
-            if (calendarPermission)
+            if (calendarPermission) {
+                phaseStart = TimeWrapper.phaseStart()
                 ComplicationWrapper.drawComplications(canvas, currentTimeMillis)
+                TimeWrapper.phaseEnd(Phase.COMPLICATIONS, phaseStart)
+            }
 
+            phaseStart = TimeWrapper.phaseStart()
             drawHands(canvas)
+            TimeWrapper.phaseEnd(Phase.HANDS, phaseStart)
 
             // something a real watch can't do: float the text over the hands
-            if (showDayDate) drawMonthBox(canvas)
+            if (showDayDate) {
+                phaseStart = TimeWrapper.phaseStart()
+                SharedLayerCache.draw(canvas, Layer.MONTH_BOX, surfaceWidth, surfaceHeight, monthBoxLayerKey(), monthBoxRenderer)
+                TimeWrapper.phaseEnd(Phase.MONTH_BOX, phaseStart)
+            }
         } catch (th: Throwable) {
             Log.e(TAG, "exception in drawEverything", th)
         } finally {
+            if (ambientCpuStart >= 0)
+                TimeWrapper.recordPhase(Phase.AMBIENT_TICK_CPU, Debug.threadCpuTimeNanos() - ambientCpuStart)
             TimeWrapper.frameEnd()
         }
     }
 
-    private fun drawRadialLine(
-        canvas: Canvas,
-        seconds: Double,
-        startRadius: Float,
-        endRadius: Float,
-        paint: Paint,
-        shadowPaint: Paint?,
-        forceVertical: Boolean = false
-    ) {
-        val p = Path()
-        drawRadialLine(p, paint.strokeWidth, seconds, startRadius, endRadius, forceVertical, false)
-        canvas.drawPath(p, paint)
-        if (shadowPaint != null)
-            canvas.drawPath(p, shadowPaint)
+    /**
+     * Everything the calendar layer depends on: the events and their geometry, the hour (for the stipple),
+     * the style, and whether we can see the calendar at all.
+     */
+    private fun calendarLayerKey(): Long {
+        var key = mix(KEY_SEED, faceModel.version)
+        key = mix(key, calendarGeometry?.id ?: 0L)
+        key = mix(key, TimeWrapper.localTime / 1.hours)
+        key = mix(key, drawStyle.ordinal)
+        return mix(key, calendarPermission)
+    }
+
+    /** Everything the face layer depends on; see [drawFace]. */
+    private fun faceLayerKey(): Long {
+        var key = mix(KEY_SEED, ClockState.faceMode)
+        key = mix(key, complicationStateNow())
+        key = mix(key, drawStyle.ordinal)
+        key = mix(key, showDayDate)
+        return mix(key, missingBottomPixels)
+    }
+
+    /** The month box only changes when the strings do, and those are cached in [TimeWrapper]. */
+    private fun monthBoxLayerKey(): Long {
+        var key = mix(KEY_SEED, TimeWrapper.localMonthDay().hashCode())
+        key = mix(key, TimeWrapper.localDayOfWeek().hashCode())
+        return mix(key, drawStyle.ordinal)
+    }
+
+    /** Logs statistics about the layer and complication caches, and how often each cache was rebuilt, and why. */
+    fun reportLayers() {
+        compositor.report()
+        SharedLayerCache.report()
+        ComplicationWrapper.report()
+        glyphs.report()
+
+        val reasons = Invalidation.values()
+        Cache.values().forEach { cache ->
+            val base = cache.ordinal * (reasons.size + 1)
+            val counts = reasons.filter { rebuildCounts[base + it.ordinal] > 0 }
+                .joinToString(", ") { "$it(${rebuildCounts[base + it.ordinal]})" }
+            Log.i(TAG, "cache $cache rebuilds: [$counts], other(${rebuildCounts[base + reasons.size]})")
+        }
     }
 
     private fun drawRadialLine(
-        path: Path,
+        shape: DisplayList.Shape,
         startStrokeWidth: Float,
         seconds: Double,
         startRadiusRatio: Float,
@@ -277,73 +372,28 @@ class ClockFace(private val configMode: Boolean = false) {
         val dx = (clockX(lseconds + 15, 1f) - cx) * 0.5f * startStrokeWidth / radius
         val dy = (clockY(lseconds + 15, 1f) - cy) * 0.5f * startStrokeWidth / radius
 
-        path.moveTo(x1 + dx, y1 + dy)
-        path.lineTo(x2 + dx, y2 + dy)
-        path.lineTo(x2 - dx, y2 - dy)
-        path.lineTo(x1 - dx, y1 - dy)
-        // path.lineTo(x1+dx, y1+dy)
-        path.close()
-    }
-
-    private fun getRectRadius(radius: Float): RectF {
-        return RectF(
-            clockX(45.0, radius), // left
-            clockY(0.0, radius), // top
-            clockX(15.0, radius), // right
-            clockY(30.0, radius)
-        ) // bottom
+        shape.quad(x1 + dx, y1 + dy, x2 + dx, y2 + dy, x2 - dx, y2 - dy, x1 - dx, y1 - dy)
     }
 
-    /**
-     * Draws a radial arc on the canvas with all the specific start and end times, paint, etc.
-     * The path used for drawing is returned and may be passed back in next time, to the *path*
-     * argument, which will make things go much faster.
-     */
-    private fun drawRadialArc(
-        canvas: Canvas,
-        path: Path?,
-        secondsStart: Double,
-        secondsEnd: Double,
-        startRadiusRatio: Float,
-        endRadiusRatio: Float,
-        paint: Paint,
-        outlinePaint: Paint?
-    ): Path {
-        // Below is an attempt to do this "correctly" using the arc functionality supported natively
-        // by Android's Path.
-
-        if (startRadiusRatio < 0 || startRadiusRatio > 1 || endRadiusRatio < 0 || endRadiusRatio > 1) {
-            // if this happens, then we've got a serious bug somewhere; time for a kaboom
-            errorLogAndThrow(TAG,
-                "arc too big! radius(%.2f -> %.2f), seconds(%.2f -> %.2f)".format(
-                    startRadiusRatio,
-                    endRadiusRatio,
-                    secondsStart,
-                    secondsEnd
-                )
-            )
-        }
-
-        var p: Path? = path
+    // The display lists for each of our layers; see DisplayList. Each one is tagged with the same key we
+    // use for the layer's bitmap, so if the bitmap has to be redrawn for any reason other than the key
+    // changing, we can skip straight to the Canvas calls.
+    private var calendarList: DisplayList? = null
+    private var faceList: DisplayList? = null
+    private var monthBoxList: DisplayList? = null
+    private var batteryList: DisplayList? = null
 
-        if (p == null) {
-            p = Path()
-
-            val startOval = getRectRadius(startRadiusRatio)
-            val endOval = getRectRadius(endRadiusRatio)
-            p.arcTo(startOval, (secondsStart * 6 - 90).toFloat(), ((secondsEnd - secondsStart) * 6).toFloat(), true)
-            p.arcTo(endOval, (secondsEnd * 6 - 90).toFloat(), (-(secondsEnd - secondsStart) * 6).toFloat())
-            p.close()
-        }
-
-        canvas.drawPath(p, paint)
-        if (outlinePaint != null)
-            canvas.drawPath(p, outlinePaint)
-
-        return p
+    private fun drawMonthBox(canvas: Canvas) {
+        val key = monthBoxLayerKey()
+        val list = monthBoxList?.takeIf { it.key == key } ?: buildMonthBox(key).also { monthBoxList = it }
+        list.replay(canvas, glyphs)
     }
 
-    private fun drawMonthBox(canvas: Canvas) {
+    @VisibleForTesting
+    internal fun buildMonthBox(key: Long): DisplayList {
+        noteRebuild(Cache.MONTH_BOX_LIST)
+        val builder = DisplayList.Builder(key)
+
         // for now, hard-coded to the 9-oclock position
         val m = TimeWrapper.localMonthDay()
         val d = TimeWrapper.localDayOfWeek()
@@ -355,40 +405,31 @@ class ClockFace(private val configMode: Boolean = false) {
 
         // AA note: we only draw the month box when in normal mode, not ambient, so no AA gymnastics here
 
-        val metrics = paint.fontMetrics
+        val metrics = glyphs.metrics(paint)
         val dybottom = -metrics.ascent - metrics.leading // smidge it up a bunch
         val dytop = -metrics.descent // smidge it down a little
 
-        drawShadowText(canvas, d, x1, y1 + dybottom, paint, shadow)
-        drawShadowText(canvas, m, x1, y1 + dytop, paint, shadow)
+        builder.text(d, x1, y1 + dybottom, paint, shadow)
+        builder.text(m, x1, y1 + dytop, paint, shadow)
+        return builder.build()
     }
 
-    private fun drawShadowText(canvas: Canvas, text: String, x: Float, y: Float, paint: Paint, shadowPaint: Paint?) {
-        if (shadowPaint != null)
-            canvas.drawText(text, x, y, shadowPaint)
-        canvas.drawText(text, x, y, paint)
-    }
-
-    private var facePathCache: Path? = null
-    private var facePathComplicationState: Int = 0
-    private var facePathCacheMode = -1
-
     private fun complicationStateNow(): Int =
         (if (isComplicationVisible(LEFT)) 8 else 0) +
             (if (isComplicationVisible(RIGHT)) 4 else 0) +
             (if (isComplicationVisible(TOP)) 2 else 0) +
             (if (isComplicationVisible(BOTTOM)) 1 else 0)
 
-    private fun getCachedFacePath(mode: Int): Path? =
-        if (facePathComplicationState == complicationStateNow() && facePathCacheMode == mode) facePathCache else null
-
-    private fun saveCachedFacePath(mode: Int, path: Path) {
-        facePathCacheMode = mode
-        facePathCache = path
-        facePathComplicationState = complicationStateNow()
+    private fun drawFace(canvas: Canvas) {
+        val key = faceLayerKey()
+        val list = faceList?.takeIf { it.key == key } ?: buildFace(key).also { faceList = it }
+        list.replay(canvas, glyphs)
     }
 
-    private fun drawFace(canvas: Canvas) {
+    @VisibleForTesting
+    internal fun buildFace(key: Long): DisplayList {
+        noteRebuild(Cache.FACE_LIST)
+        val builder = DisplayList.Builder(key)
         val bottomHack = missingBottomPixels > 0
 
         // force "lite" mode when in burn-in protection mode
@@ -396,7 +437,6 @@ class ClockFace(private val configMode: Boolean = false) {
 
         // see if we can make this work properly without needing to drop into "lite" mode
         val lFaceMode = ClockState.faceMode
-        var lFacePathCache = getCachedFacePath(lFaceMode)
 
         val colorTickShadow = paintCan[drawStyle, Brush.TICK_SHADOW]
         val colorSmall = paintCan[drawStyle, Brush.SMALL_LINES]
@@ -409,13 +449,9 @@ class ClockFace(private val configMode: Boolean = false) {
             else
                 colorBig.strokeWidth
 
-        // check if we've already rendered the face
-        if (lFacePathCache == null) {
-            Log.v(TAG, "drawFace: cx($cx), cy($cy), r($radius)")
-
-            lFacePathCache = Path()
-
-            Log.v(TAG, "rendering new face, faceMode($lFaceMode)")
+        // all the tick marks go into one shape, filled and then outlined
+        builder.shape(colorSmall, colorTickShadow) { ticks ->
+            Log.v(TAG, "buildFace: cx($cx), cy($cy), r($radius), faceMode($lFaceMode)")
 
             if (calendarTicker % 1000 == 0) {
                 Log.v(TAG,
@@ -431,7 +467,7 @@ class ClockFace(private val configMode: Boolean = false) {
 
                     if (i % 5 != 0)
                         drawRadialLine(
-                            lFacePathCache,
+                            ticks,
                             colorSmall.strokeWidth,
                             i.toDouble(),
                             0.9f,
@@ -454,8 +490,8 @@ class ClockFace(private val configMode: Boolean = false) {
                 val topLineStart = if (isComplicationVisible(TOP)) 0.85f else 0.75f
 
                 // we draw double lines here, because style
-                drawRadialLine(lFacePathCache, strokeWidth, -0.4, topLineStart, 1.0f, forceVertical = true, flatBottomHack = false)
-                drawRadialLine(lFacePathCache, strokeWidth, 0.4, topLineStart, 1.0f, forceVertical = true, flatBottomHack = false)
+                drawRadialLine(ticks, strokeWidth, -0.4, topLineStart, 1.0f, forceVertical = true, flatBottomHack = false)
+                drawRadialLine(ticks, strokeWidth, 0.4, topLineStart, 1.0f, forceVertical = true, flatBottomHack = false)
             }
 
             if (lFaceMode != FACE_NUMBERS || isComplicationVisible(LEFT)) {
@@ -463,7 +499,7 @@ class ClockFace(private val configMode: Boolean = false) {
                 // 9 o'clock
                 //
                 val leftLineStart = if (showDayDate) 0.9f else 0.75f
-                drawRadialLine(lFacePathCache, strokeWidth, 45.0, leftLineStart, 1.0f, forceVertical = false, flatBottomHack = false)
+                drawRadialLine(ticks, strokeWidth, 45.0, leftLineStart, 1.0f, forceVertical = false, flatBottomHack = false)
             }
 
             if (lFaceMode != FACE_NUMBERS || isComplicationVisible(RIGHT)) {
@@ -471,7 +507,7 @@ class ClockFace(private val configMode: Boolean = false) {
                 // 3 o'clock
                 //
                 val rightLineStart = if (isComplicationVisible(RIGHT)) 0.85f else 0.75f
-                drawRadialLine(lFacePathCache, strokeWidth, 15.0, rightLineStart, 1.0f, forceVertical = false, flatBottomHack = bottomHack)
+                drawRadialLine(ticks, strokeWidth, 15.0, rightLineStart, 1.0f, forceVertical = false, flatBottomHack = bottomHack)
             }
 
             if (lFaceMode != FACE_NUMBERS || isComplicationVisible(BOTTOM)) {
@@ -484,7 +520,7 @@ class ClockFace(private val configMode: Boolean = false) {
                         bottomHack -> 0.9f
                         else -> 0.75f
                     }
-                    drawRadialLine(lFacePathCache, strokeWidth, 30.0, bottomLineStart, 1.0f, forceVertical = false, flatBottomHack = bottomHack)
+                    drawRadialLine(ticks, strokeWidth, 30.0, bottomLineStart, 1.0f, forceVertical = false, flatBottomHack = bottomHack)
                 }
             }
 
@@ -492,15 +528,11 @@ class ClockFace(private val configMode: Boolean = false) {
             for (i in 5 until 60 step 5) {
                 if (i == 15 || i == 30 || i == 45) continue
 
-                drawRadialLine(lFacePathCache, strokeWidth, i.toDouble(), 0.75f, 1.0f, forceVertical = false, flatBottomHack = bottomHack)
+                drawRadialLine(ticks, strokeWidth, i.toDouble(), 0.75f, 1.0f, forceVertical = false, flatBottomHack = bottomHack)
             }
 
-            saveCachedFacePath(lFaceMode, lFacePathCache)
         }
 
-        canvas.drawPath(lFacePathCache, colorSmall)
-        canvas.drawPath(lFacePathCache, colorTickShadow)
-
         if (lFaceMode == FACE_NUMBERS) {
             // in this case, we'll draw "12", "3", and "6". No "9" because that's where the
             // month and day will go
@@ -511,7 +543,7 @@ class ClockFace(private val configMode: Boolean = false) {
             //
             // note: metrics.ascent is a *negative* number while metrics.descent is a *positive* number
             //
-            val metrics = colorBig.fontMetrics
+            val metrics = glyphs.metrics(colorBig)
 
             //
             // 12 o'clock
@@ -522,7 +554,7 @@ class ClockFace(private val configMode: Boolean = false) {
                 x = clockX(0.0, r)
                 y = clockY(0.0, r) - metrics.ascent / 1.5f
 
-                drawShadowText(canvas, "12", x, y, colorBig, colorTextShadow)
+                builder.text("12", x, y, colorBig, colorTextShadow)
 
                 if (!debugMetricsPrinted) {
                     debugMetricsPrinted = true
@@ -544,13 +576,13 @@ class ClockFace(private val configMode: Boolean = false) {
             if (!isComplicationVisible(RIGHT)) { // don't draw if there's a complication
                 r = 0.9f
 
-                val threeWidth = colorBig.measureText("3")
+                val threeWidth = glyphs.width("3", colorBig)
 
                 x = clockX(15.0, r) - threeWidth / 2f
                 y = clockY(15.0, r) - metrics.ascent / 2f - metrics.descent /
                     2f // empirically gets the middle of the "3" -- actually a smidge off with Roboto but close enough for now and totally font-dependent with no help from metrics
 
-                drawShadowText(canvas, "3", x, y, colorBig, colorTextShadow)
+                builder.text("3", x, y, colorBig, colorTextShadow)
             }
 
             //
@@ -566,7 +598,7 @@ class ClockFace(private val configMode: Boolean = false) {
                 else
                     clockY(30.0, r) + 0.75f * metrics.descent // scoot it up a tiny bit
 
-                drawShadowText(canvas, "6", x, y, colorBig, colorTextShadow)
+                builder.text("6", x, y, colorBig, colorTextShadow)
             }
 
             //
@@ -575,29 +607,73 @@ class ClockFace(private val configMode: Boolean = false) {
 
             if (!showDayDate) { // don't draw if our internal complication is visible
                 r = 0.9f
-                val nineWidth = colorBig.measureText("9")
+                val nineWidth = glyphs.width("9", colorBig)
 
                 x = clockX(45.0, r) + nineWidth / 2f
                 y = clockY(45.0, r) - metrics.ascent / 2f - metrics.descent / 2f
 
-                drawShadowText(canvas, "9", x, y, colorBig, colorTextShadow)
+                builder.text("9", x, y, colorBig, colorTextShadow)
             }
         }
+
+        return builder.build()
     }
 
-    private fun drawHands(canvas: Canvas) {
+    // Each hand is built once per size, pointing straight up at 12 o'clock, and then we rotate the
+    // canvas to draw it. We used to build a fresh Path for every hand on every frame, which added up
+    // to a lot of garbage with the second hand sweeping.
+    private var hourHandPath = Path()
+    private var minuteHandPath = Path()
+    private var secondHandPath = Path()
+    private var handPathsValid = false
+
+    private fun buildHandPaths() {
+        noteRebuild(Cache.HAND_PATHS)
+
+        // The stroke widths are the same in every style, so we can use the NORMAL ones here.
+        hourHandPath = handPath(Brush.HOUR_HAND, 0.6f)
+        minuteHandPath = handPath(Brush.MINUTE_HAND, 0.9f)
+        secondHandPath = handPath(Brush.SECOND_HAND, 0.95f)
+
+        handPathsValid = true
+    }
+
+    private fun handPath(brush: Brush, length: Float) = DisplayList.Shape().also {
+        drawRadialLine(it, paintCan[Style.NORMAL, brush].strokeWidth, 0.0, 0.1f, length, false, false)
+    }.path
+
+    /**
+     * Draws one of the prebuilt hand paths, rotated to the given position on our 60-unit dial.
+     * No allocation happens here.
+     */
+    private fun drawHand(canvas: Canvas, handPath: Path, seconds: Double, paint: Paint, shadowPaint: Paint) {
+        // Reduce modulo 60 while we're still in double precision: the raw values are counting from
+        // 1970, and a float doesn't have anywhere near enough bits for that.
+        val degrees = ((seconds % 60.0) * 6.0).toFloat()
+
+        val saveCount = canvas.save()
+        canvas.rotate(degrees, cx.toFloat(), cy.toFloat())
+        canvas.drawPath(handPath, paint)
+        canvas.drawPath(handPath, shadowPaint)
+        canvas.restoreToCount(saveCount)
+    }
+
+    @VisibleForTesting
+    internal fun drawHands(canvas: Canvas) {
+        if (!handPathsValid) buildHandPaths()
+
         val time = TimeWrapper.localTime
 
         val seconds = time / (1.seconds.toDouble())
         val minutes = seconds / 60.0
-        val hours = minutes / 12.0 // because drawRadialLine is scaled to a 60-unit circle
+        val hours = minutes / 12.0 // because the dial is scaled to a 60-unit circle
 
         val shadowColor = paintCan[drawStyle, Brush.HAND_SHADOW]
         val hourColor = paintCan[drawStyle, Brush.HOUR_HAND]
         val minuteColor = paintCan[drawStyle, Brush.MINUTE_HAND]
 
-        drawRadialLine(canvas, hours, 0.1f, 0.6f, hourColor, shadowColor)
-        drawRadialLine(canvas, minutes, 0.1f, 0.9f, minuteColor, shadowColor)
+        drawHand(canvas, hourHandPath, hours, hourColor, shadowColor)
+        drawHand(canvas, minuteHandPath, minutes, minuteColor, shadowColor)
 
         if (drawStyle == Style.NORMAL && showSeconds) {
             val secondsColor = paintCan[Style.NORMAL, Brush.SECOND_HAND]
@@ -605,25 +681,100 @@ class ClockFace(private val configMode: Boolean = false) {
             // behavior that European rail clocks demonstrate. The only thing that "real" rail
             // clocks have the we don't is a two second hard stop at 12 o'clock.
 
-            drawRadialLine(canvas, nonLinearSeconds(seconds), 0.1f, 0.95f, secondsColor, shadowColor)
+            drawHand(canvas, secondHandPath, nonLinearSeconds(seconds), secondsColor, shadowColor)
         }
     }
 
-    /** call this if external forces at play may have invalidated state being saved inside ClockFace */
-    private fun wipeCaches() {
-        Log.v(TAG, "clearing caches: instance $instanceID")
+    /**
+     * Everything ClockFace caches, and what each one depends on. When something changes, we
+     * only drop the caches whose dependency set includes the [Invalidation] reason.
+     */
+    private enum class Cache(vararg reasons: Invalidation) {
+        CALENDAR_LAYER(Invalidation.CALENDAR, Invalidation.SIZE),
+        FACE_LAYER(Invalidation.COMPLICATION, Invalidation.STYLE, Invalidation.SIZE),
+        MONTH_BOX_LAYER(Invalidation.SIZE),
+        CALENDAR_LIST(Invalidation.CALENDAR, Invalidation.SIZE),
+        FACE_LIST(Invalidation.COMPLICATION, Invalidation.STYLE, Invalidation.SIZE),
+        MONTH_BOX_LIST(Invalidation.SIZE),
+        BATTERY_LIST(Invalidation.BATTERY, Invalidation.SIZE),
+        GLYPHS(Invalidation.SIZE),
+        HAND_PATHS(Invalidation.SIZE);
+
+        val dependsOn = reasons.fold(0) { mask, reason -> mask or reason.mask }
+    }
 
-        facePathCache = null
-        batteryPathCache = null
-        batteryCritical = false
-        stipplePathCache = null
-        stippleTimeCache = -1
+    /** Call this if external forces at play may have invalidated state being saved inside ClockFace. */
+    fun invalidate(reason: Invalidation) {
+        Log.v(TAG, "invalidate($reason): instance $instanceID")
+
+        Cache.values().forEach {
+            if (it.dependsOn and reason.mask != 0) {
+                pendingReason[it.ordinal] = reason.ordinal
+
+                when (it) {
+                    Cache.CALENDAR_LAYER -> compositor.invalidate(Layer.CALENDAR)
+                    // these are shared with every other ClockFace, and their keys already cover
+                    // everything they depend on, so there's nothing to drop; see SharedLayerCache
+                    Cache.FACE_LAYER, Cache.MONTH_BOX_LAYER -> Unit
+                    Cache.CALENDAR_LIST -> calendarList = null
+                    Cache.FACE_LIST -> faceList = null
+                    Cache.MONTH_BOX_LIST -> monthBoxList = null
+                    Cache.BATTERY_LIST -> batteryList = null
+                    Cache.HAND_PATHS -> handPathsValid = false
+                    Cache.GLYPHS -> glyphs.clear()
+                }
+            }
+        }
+    }
 
-        eventList.forEach { it.path = null }
+    /** Call this whenever a cache actually gets rebuilt, so we can count why. */
+    private fun noteRebuild(cache: Cache) {
+        val reason = pendingReason[cache.ordinal]
+        val slot = if (reason == NO_REASON) Invalidation.values().size else reason
+        rebuildCounts[cache.ordinal * (Invalidation.values().size + 1) + slot]++
+        pendingReason[cache.ordinal] = NO_REASON
     }
 
-    private var stippleTimeCache: Long = -1
-    private var stipplePathCache: Path? = null
+    // The calendar wedges, built off the UI thread; see WedgeGeometry. If the FaceModel didn't come with
+    // geometry for our size, we ask for it, and keep drawing the old wedges until it shows up.
+    private var calendarGeometry: WedgeGeometry? = null
+    private var lateGeometry: WedgeGeometry? = null
+    private var pendingGeometrySource: List<EventWrapper>? = null
+    private var pendingGeometryWidth = 0
+    private var pendingGeometryHeight = 0
+
+    private fun updateCalendarGeometry() {
+        val visible = faceModel.visibleEventList
+
+        val published = faceModel.geometry
+        val late = lateGeometry
+        val current = when {
+            published != null && published.matches(visible, surfaceWidth, surfaceHeight) -> published
+            late != null && late.matches(visible, surfaceWidth, surfaceHeight) -> late
+            else -> null
+        }
+
+        if (current != null) {
+            calendarGeometry = current
+            return
+        }
+
+        if (pendingGeometrySource !== visible || pendingGeometryWidth != surfaceWidth || pendingGeometryHeight != surfaceHeight) {
+            pendingGeometrySource = visible
+            pendingGeometryWidth = surfaceWidth
+            pendingGeometryHeight = surfaceHeight
+
+            Log.v(TAG, "requesting calendar geometry: ${visible.size} events, $surfaceWidth x $surfaceHeight, instance $instanceID")
+            WedgeGeometry.buildAsync(visible, faceModel.maxLevel, surfaceWidth, surfaceHeight) {
+                lateGeometry = it
+                CalWatchFaceService.redraw()
+            }
+        }
+
+        // stale wedges are better than no wedges, but only if they're the right size
+        if (calendarGeometry?.let { it.width != surfaceWidth || it.height != surfaceHeight } == true)
+            calendarGeometry = null
+    }
 
     private fun drawCalendar(canvas: Canvas) {
         calendarTicker++
@@ -635,38 +786,23 @@ class ClockFace(private val configMode: Boolean = false) {
             return
         }
 
-        val time = TimeWrapper.localTime
-
-        eventList.forEach {
-            val e = it.calendarEvent
-            val evMinLevel = it.minLevel
-            val evMaxLevel = it.maxLevel
-
-            val startTime = e.startTime
-            val endTime = e.endTime
-
-            //
-            // Our drawing routines take angles that go from 0-60. By dividing by 12 minutes,
-            // that ensures that 12 hours will go all the way around. Why? Because:
-            //
-            // 60 * 12 minutes = 12 hours
-            //
-            val twelveMinutes = 12.minutes.toDouble()
-
-            val arcStart: Double = startTime / twelveMinutes
-            val arcEnd: Double = endTime / twelveMinutes
+        val key = calendarLayerKey()
+        val list = calendarList?.takeIf { it.key == key } ?: buildCalendar(key).also { calendarList = it }
+        list.replay(canvas, glyphs)
+    }
 
-            // path caching happens inside drawRadialArc
+    private fun buildCalendar(key: Long): DisplayList {
+        noteRebuild(Cache.CALENDAR_LIST)
+        val builder = DisplayList.Builder(key)
 
-            val arcColor = it.paint
-            val arcShadow = paintCan[drawStyle, Brush.ARC_SHADOW]
+        val time = TimeWrapper.localTime
 
-            it.path = drawRadialArc(
-                canvas, it.path, arcStart, arcEnd,
-                CALENDAR_RING_MAX_RADIUS - evMinLevel * CALENDAR_RING_WIDTH / (maxLevel + 1),
-                CALENDAR_RING_MAX_RADIUS - (evMaxLevel + 1) * CALENDAR_RING_WIDTH / (maxLevel + 1),
-                arcColor, arcShadow
-            )
+        // All the fills first, then all the outlines in one go. The wedges never overlap, so
+        // the order doesn't matter.
+        val geometry = calendarGeometry
+        if (geometry != null && geometry.batches.isNotEmpty()) {
+            geometry.batches.forEach { builder.path(it.path, it.paint) }
+            builder.path(geometry.outline, paintCan[drawStyle, Brush.ARC_SHADOW])
         }
 
         // Lastly, draw a stippled pattern at the current hour mark to delineate where the
@@ -677,13 +813,7 @@ class ClockFace(private val configMode: Boolean = false) {
         var stippleTime = time / 1.hours
         stippleTime *= 5
 
-        // we might want to rejigger this to be paranoid about concurrency smashing stipplePathCache,
-        // but it's less of a problem here than with the watchFace, because the external UI isn't
-        // inducing the state here to change
-        val lStipplePathCache = stipplePathCache ?: Path()
-        if (stippleTime != stippleTimeCache || stipplePathCache == null) {
-            stippleTimeCache = stippleTime
-
+        builder.shape(paintCan[drawStyle, Brush.BLACK_FILL]) { stipple ->
             //            if(calendarTicker % 1000 == 0)
             //                Log.v(TAG, "StippleTime(" + stippleTime +
             //                        "),  currentTime(" + Float.toString((time) / 720000f) + ")")
@@ -731,16 +861,10 @@ class ClockFace(private val configMode: Boolean = false) {
                 xhigh = xmid - dxhigh
                 yhigh = ymid - dyhigh
 
-                // Path p = new Path()
-                lStipplePathCache.moveTo(x1, y1)
-                lStipplePathCache.lineTo(xlow, ylow)
-                lStipplePathCache.lineTo(x2, y2)
-                lStipplePathCache.lineTo(xhigh, yhigh)
-                lStipplePathCache.close()
+                stipple.quad(x1, y1, xlow, ylow, x2, y2, xhigh, yhigh)
                 r1 = r2
                 x1 = x2
                 y1 = y2
-                // canvas.drawPath(p, black)
 
                 //                if(calendarTicker % 1000 == 0)
                 //                    Log.v(TAG, "x1(" + Float.toString(x1) + "), y1(" + Float.toString(y1) +
@@ -749,66 +873,56 @@ class ClockFace(private val configMode: Boolean = false) {
                 //                            "), xhigh(" + Float.toString(xhigh) + "), yhigh(" + Float.toString(yhigh) +
                 //                            ")")
             }
-
-            stipplePathCache = lStipplePathCache
         }
-        canvas.drawPath(lStipplePathCache, paintCan[drawStyle, Brush.BLACK_FILL])
-    }
 
-    private var batteryPathCache: Path? = null
-    private var batteryCritical = false
-    private var batteryCacheTime: Long = 0
+        return builder.build()
+    }
 
     private fun drawBattery(canvas: Canvas) {
-        val time = TimeWrapper.gmtTime
-
-        // we don't want to poll *too* often; the code below translates to about once per five minute
-        val lBatteryPathCache = batteryPathCache ?: Path()
-        if (batteryPathCache == null || time - batteryCacheTime > 5.minutes) {
-            Log.v(TAG, "fetching new battery status")
-            BatteryWrapper.fetchStatus()
-            batteryCacheTime = time
-
-            //
-            // The concept: draw nothing unless the battery is low. At 30% (POWER_WARN_LOW_LEVEL),
-            // we start a small yellow circle. This scales in radius until it hits max size at 10%
-            // (POWER_WARN_CRITICAL_LEVEL), then it switches to red.
-            //
+        // BatteryWrapper pushes changes to us, so this is just a field read. We only rebuild the list
+        // when the indicator we'd draw is different, and BatteryWrapper invalidates us when it is.
+        val battery = BatteryWrapper.state
+        val key = mix(mix(KEY_SEED, battery.indicator), drawStyle.ordinal)
+        val list = batteryList?.takeIf { it.key == key } ?: buildBattery(key, battery).also { batteryList = it }
+        list.replay(canvas, glyphs)
+    }
 
-            Log.v(TAG, "battery at $batteryPct")
-            if (batteryPct <= Constants.POWER_WARN_LOW_LEVEL) {
-                val minRadius = 0.01f
-                val maxRadius = 0.06f
-                batteryCritical = batteryPct <= Constants.POWER_WARN_CRITICAL_LEVEL
+    private fun buildBattery(key: Long, battery: BatteryState): DisplayList {
+        noteRebuild(Cache.BATTERY_LIST)
+        val builder = DisplayList.Builder(key)
 
-                val dotRadius = maxRadius - if (batteryCritical) 0f else
-                    (maxRadius - minRadius) * (batteryPct - Constants.POWER_WARN_CRITICAL_LEVEL) / (Constants.POWER_WARN_LOW_LEVEL - Constants.POWER_WARN_CRITICAL_LEVEL)
+        //
+        // The concept: draw nothing unless the battery is low. At 30% (POWER_WARN_LOW_LEVEL),
+        // we start a small yellow circle. This scales in radius until it hits max size at 10%
+        // (POWER_WARN_CRITICAL_LEVEL), then it switches to red.
+        //
 
-                lBatteryPathCache.addCircle(
-                    cx.toFloat(),
-                    cy.toFloat(),
-                    radius * dotRadius,
-                    Path.Direction.CCW
-                ) // direction shouldn't matter
+        Log.v(TAG, "battery: $battery")
+        if (battery.indicator != BatteryState.INDICATOR_NONE) {
+            val minRadius = 0.01f
+            val maxRadius = 0.06f
+            val dotRadius = minRadius + (maxRadius - minRadius) * battery.dotFraction
 
-                Log.v(TAG, "--> dot radius: $dotRadius, critical: $batteryCritical")
-            }
+            // note that we'll flip the color from white to red once the battery gets below 10%
+            // (in ambient mode, we can't show it at all because of burn-in issues)
+            val paint = paintCan[drawStyle, if (battery.isCritical) Brush.BATTERY_CRITICAL else Brush.BATTERY_LOW]
+            builder.circle(cx.toFloat(), cy.toFloat(), radius * dotRadius, paint)
 
-            batteryPathCache = lBatteryPathCache
+            Log.v(TAG, "--> dot radius: $dotRadius, critical: ${battery.isCritical}")
         }
 
-        // note that we'll flip the color from white to red once the battery gets below 10%
-        // (in ambient mode, we can't show it at all because of burn-in issues)
-        if (batteryPathCache != null) {
-            val paint = paintCan[drawStyle, if (batteryCritical) Brush.BATTERY_CRITICAL else Brush.BATTERY_LOW]
-            canvas.drawPath(lBatteryPathCache, paint)
-        }
+        return builder.build()
     }
 
     fun setSize(width: Int, height: Int) {
         Log.v(TAG, "setSize: $width x $height")
         cx = width / 2
         cy = height / 2
+        surfaceWidth = width
+        surfaceHeight = height
+
+        compositor.setSize(width, height)
+        if (!configMode) WedgeGeometry.setSurfaceSize(width, height)
 
         if (cx == oldCx && cy == oldCy) return // nothing changed, we're done
 
@@ -816,6 +930,7 @@ class ClockFace(private val configMode: Boolean = false) {
         oldCy = cy
 
         radius = if (cx > cy) cy else cx // minimum of the two
+        dial.update(cx, cy, radius, missingBottomPixels)
 
         if (!configMode) {
             computeFlatBottomCorners()
@@ -825,8 +940,8 @@ class ClockFace(private val configMode: Boolean = false) {
         // This creates all the Paint objects used throughout the draw routines
         // here. Everything scales with the radius of the watchface, which is why
         // we're calling it from here.
-        paintCan = PaintCan(radius.toFloat())
-        wipeCaches()
+        paintCan = PaintCan.forRadius(radius.toFloat())
+        invalidate(Invalidation.SIZE)
     }
 
     // coordinates of each corner where the flat tire begins.
@@ -913,47 +1028,28 @@ class ClockFace(private val configMode: Boolean = false) {
         return interpolate(flatBottomCornerY1R80, 0.8f, flatBottomCornerY1R100, 1f, radius)
     }
 
-    // clock math
-    private fun clockX(seconds: Double, fractionFromCenter: Float): Float {
-        val angleRadians = (seconds - 15) * PI * 2.0 / 60.0
-        return (cx + radius * fractionFromCenter * cos(angleRadians)).toFloat()
-    }
+    // clock math, all table lookups; see DialTables
+    private fun clockX(seconds: Double, fractionFromCenter: Float) = dial.x(seconds, fractionFromCenter)
 
-    private fun clockY(seconds: Double, fractionFromCenter: Float): Float {
-        val angleRadians = (seconds - 15) * PI * 2.0 / 60.0
-        return (cy + radius * fractionFromCenter * sin(angleRadians)).toFloat()
-    }
+    private fun clockY(seconds: Double, fractionFromCenter: Float) = dial.y(seconds, fractionFromCenter)
 
     // hack for Moto360: given the location on the dial (seconds), and the originally
     // desired radius, this returns your new radius that will touch the flat bottom
-    private fun radiusToEdge(seconds: Double): Float {
-        val yOrig = clockY(seconds, 1f)
-        if (yOrig > cy * 2 - missingBottomPixels) {
-            // given:
-            //   yOrig = cy + radius * fractionFromCenter * sin(angle)
-            // substitute the desired Y, i.e.,
-            //   cy*2 - missingBottomPixels = cy + radius * fractionFromCenter * sin(angle)
-            // and now solve for fractionFromCenter:
-            //   (cy - missingBottomPixels) / (radius * sin(angle)) = fractionFromCenter
-            val angleRadians = (seconds - 15) * PI * 2.0 / 60.0
-            return try {
-                ((cy - missingBottomPixels) / (radius * sin(angleRadians))).toFloat()
-            } catch (e: ArithmeticException) {
-                // division by zero, weird, so fall back to the default
-                1f
-            }
-        } else
-            return 1f
-    }
+    private fun radiusToEdge(seconds: Double) = dial.radiusToEdge(seconds)
 
     private fun updateEventList() {
-        // This is cheap enough that we can afford to do it at 60Hz, although the call to getVisibleEventList()
-        // might start a task, on a different thread, to update the events from the calendar. If that happens,
-        // ClockState will be updated asynchronously, and the next time we come here, we'll get the latest
-        // events. While that background task is running, this call will give us the original events
-        // every time.
-        this.maxLevel = ClockState.maxLevel
-        this.eventList = ClockState.getVisibleEventList()
+        // This is cheap enough that we can afford to do it at 60Hz. When the calendar is being refreshed
+        // (see TimeService and CalendarFetcher), ClockState will be updated asynchronously, and the next
+        // time we come here, we'll get the latest events. While that background task is running, this
+        // call will give us the original events every time.
+
+        // We read one immutable snapshot, so the events and maxLevel always agree with each other. A new
+        // version usually comes with its wedge geometry already built, so there's nothing else to wipe.
+        val newModel = ClockState.getFaceModel()
+        if (newModel.version != faceModel.version) {
+            Log.v(TAG, "new face model: $newModel, instance $instanceID")
+            faceModel = newModel
+        }
     }
 
     /** Tracking whether or not we're in ambient mode. */
@@ -963,8 +1059,9 @@ class ClockFace(private val configMode: Boolean = false) {
             if (field == newVal) return // nothing changed, so we're good
             field = newVal
 
+            // No need to wipe anything: every cached layer is keyed by the drawing style, and each
+            // style has its own bitmaps, so the normal-mode layers will still be there when we get back.
             updateDrawStyle()
-            wipeCaches()
         }
 
     /** Tracking whether or not we need to be in burnin-protection mode. */
@@ -997,9 +1094,9 @@ class ClockFace(private val configMode: Boolean = false) {
         private const val DEFAULT_CY = 140
         private const val DEFAULT_RADIUS = 140
 
-        private const val CALENDAR_RING_MIN_RADIUS = 0.2f
-        private const val CALENDAR_RING_MAX_RADIUS = 0.9f
-        private const val CALENDAR_RING_WIDTH = CALENDAR_RING_MAX_RADIUS - CALENDAR_RING_MIN_RADIUS
+        private const val CALENDAR_RING_MIN_RADIUS = WedgeGeometry.RING_MIN_RADIUS
+        private const val CALENDAR_RING_MAX_RADIUS = WedgeGeometry.RING_MAX_RADIUS
+        private const val CALENDAR_RING_WIDTH = WedgeGeometry.RING_WIDTH
 
         private var debugMetricsPrinted = false
 
@@ -1025,8 +1122,10 @@ class ClockFace(private val configMode: Boolean = false) {
          * snap to it, not unlike what you see in European train station clocks. Note that we're doing
          * a performance vs. memory tradeoff here. Rather than interpolating on the table, we're just
          * making the table bigger and clipping to the nearest table entry.
+         *
+         * The [FramePacer] also uses this, to figure out when the hand is moving fast enough to be worth drawing.
          */
-        private fun nonLinearSeconds(linearSeconds: Double): Double {
+        fun nonLinearSeconds(linearSeconds: Double): Double {
             val secFloor = floor(linearSeconds)
             val secFrac = linearSeconds - secFloor
             return secFloor + NON_LINEAR_TABLE[(secFrac * NON_LINEAR_TABLE_SIZE).toInt()]
@@ -1040,10 +1139,12 @@ class ClockFace(private val configMode: Boolean = false) {
 
         private var faceRefMap = WeakHashMap<ClockFace, Boolean>()
 
+        private const val NO_REASON = -1
+
         /**
-         * Finds all extant ClockFace instances and wipe their caches. Use this when
-         * underlying state (ClockState, etc.) might have changed.
+         * Finds all extant ClockFace instances and drops whichever of their caches depend on
+         * the given [reason]. Use this when underlying state (ClockState, etc.) might have changed.
          */
-        fun wipeAllCaches() = faceRefMap.keys.forEach { it.wipeCaches() }
+        fun invalidateAll(reason: Invalidation) = faceRefMap.keys.forEach { it.invalidate(reason) }
     }
 }
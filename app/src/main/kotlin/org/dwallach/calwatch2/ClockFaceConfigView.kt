@@ -104,7 +104,7 @@ class ClockFaceConfigView(context: Context, attrs: AttributeSet) : View(context,
                 if ((theta > 135 || theta < -135) && radius > 0.2) {
                     ClockState.showDayDate = !ClockState.showDayDate
                     PreferencesHelper.savePreferences(context)
-                    Utilities.redrawEverything()
+                    Utilities.redrawEverything(Invalidation.STYLE)
                 }
             }
             true
@@ -7,9 +7,30 @@
 package org.dwallach.calwatch2
 
 import android.util.Log
+import java.util.concurrent.atomic.AtomicReference
 
 private val TAG = "ClockState"
 
+/**
+ * Everything the renderer needs to know about the calendar, as one immutable snapshot. The [version]
+ * increases every time a new snapshot is published, so the renderer can key its caches off of it
+ * rather than needing somebody to tell it to throw everything away. (The [EventWrapper] instances
+ * are never mutated after publication.)
+ */
+class FaceModel(
+    val version: Long,
+    val eventList: List<CalendarEvent>,
+    val visibleEventList: List<EventWrapper>,
+    val maxLevel: Int,
+    val geometry: WedgeGeometry? = null
+) {
+    override fun toString() = "FaceModel(version($version), events(${eventList.size}), visible(${visibleEventList.size}), maxLevel($maxLevel))"
+
+    companion object {
+        val EMPTY = FaceModel(0, emptyList(), emptyList(), 0)
+    }
+}
+
 /**
  * We're doing something of the model-view-controller thing here, where ClockState has the "model" --
  * everything necessary to render a clockface including what style it is, whether we're supposed
@@ -28,11 +49,10 @@ object ClockState {
     var showSeconds: Boolean = Constants.DEFAULT_SHOW_SECONDS
     var showDayDate: Boolean = Constants.DEFAULT_SHOW_DAY_DATE
 
-    private var eventList: List<CalendarEvent> = emptyList()
-    private var visibleEventList: List<EventWrapper> = emptyList()
-
-    var maxLevel: Int = 0
-        private set
+    // We used to have separate fields for the event list, the visible events, and maxLevel, which meant
+    // that a frame could see a new list with an old maxLevel. Now it's all one immutable snapshot,
+    // swapped in atomically, so readers on any thread always see a consistent set.
+    private val faceModelRef = AtomicReference(FaceModel.EMPTY)
 
     var calendarPermission = false
 
@@ -43,59 +63,70 @@ object ClockState {
 
     /**
      * Load the eventlist. This is meant to consume the output of [CalendarFetcher]
-     * which is in GMT time, *not* local time.
+     * which is in GMT time, *not* local time. Safe to call from any thread. Returns
+     * the newly published [FaceModel].
      */
-    fun setEventList(eventList: List<CalendarEvent>, layoutPair: Pair<List<EventWrapper>, Int>) {
+    fun setEventList(
+        eventList: List<CalendarEvent>,
+        layoutPair: Pair<List<EventWrapper>, Int>,
+        geometry: WedgeGeometry? = null
+    ): FaceModel {
         Log.v(TAG, "fresh calendar event list, ${eventList.size} entries")
         val (visibleEventList, maxLevel) = layoutPair
         Log.v(TAG, "--> $visibleEventList visible events")
-        this.eventList = eventList
-        this.visibleEventList = visibleEventList
-        this.maxLevel = maxLevel
+
+        // getAndUpdate() would be nicer, but it's not available on SDK23
+        while (true) {
+            val oldModel = faceModelRef.get()
+            val newModel = FaceModel(oldModel.version + 1, eventList, visibleEventList, maxLevel, geometry)
+            if (faceModelRef.compareAndSet(oldModel, newModel)) return newModel
+        }
     }
 
     private var lastClipTime: Long = 0
 
-    private fun recomputeVisibleEvents() {
-        if (!calendarPermission) return // nothing we can do!
-
-        // This is going to be called on every screen refresh, so it needs to be fast in the common case.
-        // We're going to measure the time and try to figure out whether we've ticked onto
-        // a new hour, which would mean that it's time to redo the visibility calculation.
-
+    /**
+     * [TimeService] calls this at the top of every hour, and whenever the timezone or the clock changes.
+     * If the local hour is different from last time, that means it's time to redo the visibility
+     * calculation, so we fire off a request to reload the calendar. We're leaving the old data alone
+     * while that happens. It might take a whole second or two, but at least it's not happening on the
+     * main UI thread. Returns true if the hour changed.
+     */
+    fun checkHour(): Boolean {
         // Note that we're looking at "local" time here, so this means that any event that causes
         // us to change timezones will cause a difference in the hour and will also trigger the
         // recomputation.
-
         val localClipTime = TimeWrapper.localFloorHour
 
-        if (lastClipTime == localClipTime) return
-
-        // If we get here, that means we hit the top of a new hour. We're leaving
-        // the old data alone while we fire off a request to reload the calendar. This might take
-        // a whole second or two, but at least it's not happening on the main UI thread.
+        if (lastClipTime == localClipTime) return false
 
+        // The very first time through, a freshly constructed CalendarFetcher is already running
+        // its initial scan (and we might have been seeded from an EventSnapshot), so we only need
+        // to note the hour rather than piling on a second request.
+        val firstTime = lastClipTime == 0L
         lastClipTime = localClipTime
-        CalendarFetcher.requestRescan()
+        if (firstTime) return false
+
+        if (calendarPermission) CalendarFetcher.requestRescan()
+        return true
     }
 
     /**
-     * This returns a list of *visible* events on the watchface, cropped to size, and adjusted to
-     * the *local* timezone.
+     * This returns the current [FaceModel], whose visible events are cropped to size, and adjusted to
+     * the *local* timezone. This is called on every frame, and it's just an atomic read; the hourly
+     * refresh is driven by [TimeService].
      */
-    fun getVisibleEventList(): List<EventWrapper> {
-        recomputeVisibleEvents() // might start an async update, might not
-        return visibleEventList // return the best current data we've got
-    }
+    fun getFaceModel(): FaceModel = faceModelRef.get()
 
     private fun debugDump() {
-        Log.v(TAG, "All events in the DB:")
-        eventList.forEach {
+        val model = faceModelRef.get()
+        Log.v(TAG, "All events in the DB (version ${model.version}):")
+        model.eventList.forEach {
             Log.v(TAG, "--> displayColor(%06x), startTime(${it.startTime}), endTime(${it.endTime})".format(it.displayColor))
         }
 
         Log.v(TAG, "Visible:")
-        visibleEventList.forEach {
+        model.visibleEventList.forEach {
             Log.v(TAG,
                 "--> displayColor(%06x), minLevel(${it.minLevel}), maxLevel(${it.maxLevel}), startTime(${it.calendarEvent.startTime}), endTime(${it.calendarEvent.endTime})"
                     .format(it.calendarEvent.displayColor)
@@ -0,0 +1,114 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+package org.dwallach.calwatch2
+
+import android.util.Log
+import kotlin.math.PI
+
+private val TAG = "DialTables"
+
+/**
+ * Everything in [ClockFace] is positioned on a 60-unit dial ("seconds"), and clockX(), clockY(),
+ * and radiusToEdge() used to do a sin() or cos() for every single point. Building the face, the
+ * stipple, and the flat-bottom corrections adds up to a lot of trig. Here, we precompute, for the
+ * current size, the x and y offsets from the center at a tenth-of-a-second resolution around the dial,
+ * as well as the flat-bottom edge radius, and answer queries with a table lookup and a linear
+ * interpolation. Integer and tenth-of-a-second positions, which is nearly everything we draw,
+ * land exactly on a table entry. Elsewhere, the interpolation error is a few thousandths of a pixel.
+ *
+ * Call [update] whenever the size or the flat-bottom inset changes. The size-independent [cos] and
+ * [sin] tables are shared, and never change once built, so [WedgeGeometry] uses them too, from
+ * whatever thread it happens to be running on.
+ */
+class DialTables {
+    private var cx = 0
+    private var cy = 0
+    private var radius = 0
+    private var missingBottomPixels = 0
+
+    // radius * cos(angle) and radius * sin(angle), so a query is one multiply and one add
+    private val xTable = DoubleArray(TABLE_SIZE + 1)
+    private val yTable = DoubleArray(TABLE_SIZE + 1)
+    private val edgeTable = DoubleArray(TABLE_SIZE + 1)
+
+    /** Rebuilds the tables. Cheap enough to call from setSize(), but not something to do every frame. */
+    fun update(cx: Int, cy: Int, radius: Int, missingBottomPixels: Int) {
+        if (cx == this.cx && cy == this.cy && radius == this.radius && missingBottomPixels == this.missingBottomPixels) return
+
+        this.cx = cx
+        this.cy = cy
+        this.radius = radius
+        this.missingBottomPixels = missingBottomPixels
+
+        for (i in 0..TABLE_SIZE) {
+            xTable[i] = radius * COS_TABLE[i]
+            yTable[i] = radius * SIN_TABLE[i]
+            edgeTable[i] = computeRadiusToEdge(i)
+        }
+
+        Log.v(TAG, "update: cx($cx), cy($cy), radius($radius), missingBottomPixels($missingBottomPixels)")
+    }
+
+    /** The x-coordinate of the point at [seconds] around the dial and [fractionFromCenter] of the radius. */
+    fun x(seconds: Double, fractionFromCenter: Float) = (cx + fractionFromCenter * lookup(xTable, seconds)).toFloat()
+
+    /** The y-coordinate of the point at [seconds] around the dial and [fractionFromCenter] of the radius. */
+    fun y(seconds: Double, fractionFromCenter: Float) = (cy + fractionFromCenter * lookup(yTable, seconds)).toFloat()
+
+    /**
+     * Hack for Moto360: given the location on the dial (seconds), this returns the radius (as a fraction)
+     * that will touch the flat bottom, or 1 if the flat bottom isn't in the way.
+     */
+    fun radiusToEdge(seconds: Double): Float =
+        if (missingBottomPixels == 0) 1f else lookup(edgeTable, seconds).toFloat()
+
+    private fun computeRadiusToEdge(index: Int): Double {
+        val yOrig = cy + radius * SIN_TABLE[index]
+        if (yOrig <= cy * 2 - missingBottomPixels) return 1.0
+
+        // given:
+        //   yOrig = cy + radius * fractionFromCenter * sin(angle)
+        // substitute the desired Y, i.e.,
+        //   cy*2 - missingBottomPixels = cy + radius * fractionFromCenter * sin(angle)
+        // and now solve for fractionFromCenter:
+        //   (cy - missingBottomPixels) / (radius * sin(angle)) = fractionFromCenter
+        val result = (cy - missingBottomPixels) / (radius * SIN_TABLE[index])
+        return if (result.isFinite()) result else 1.0 // division by zero, weird, so fall back to the default
+    }
+
+    companion object {
+        private const val STEPS_PER_SECOND = 10
+        private const val TABLE_SIZE = 60 * STEPS_PER_SECOND
+
+        // These don't depend on the size, so every instance can share them. There's one extra
+        // entry at the end, equal to the first, so the interpolation never has to wrap around.
+        private val COS_TABLE = DoubleArray(TABLE_SIZE + 1) { kotlin.math.cos(angleRadians(it)) }
+        private val SIN_TABLE = DoubleArray(TABLE_SIZE + 1) { kotlin.math.sin(angleRadians(it)) }
+
+        /** cos() of the angle for [seconds] on the dial, where zero seconds is at 12 o'clock. Safe on any thread. */
+        fun cos(seconds: Double) = lookup(COS_TABLE, seconds)
+
+        /** sin() of the angle for [seconds] on the dial, where zero seconds is at 12 o'clock. Safe on any thread. */
+        fun sin(seconds: Double) = lookup(SIN_TABLE, seconds)
+
+        private fun angleRadians(index: Int) = (index.toDouble() / STEPS_PER_SECOND - 15) * PI * 2.0 / 60.0
+
+        private fun lookup(table: DoubleArray, seconds: Double): Double {
+            // reduce modulo 60 in double precision, since some callers pass in times counting from 1970
+            var position = (seconds % 60.0) * STEPS_PER_SECOND
+            if (position < 0) position += TABLE_SIZE
+
+            var index = position.toInt()
+            if (index >= TABLE_SIZE) index = TABLE_SIZE - 1 // rounding can land us right on the end
+
+            val fraction = position - index
+            val low = table[index]
+            return if (fraction == 0.0) low else low + (table[index + 1] - low) * fraction
+        }
+    }
+}
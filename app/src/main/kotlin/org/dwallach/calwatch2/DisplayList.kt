@@ -0,0 +1,157 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+package org.dwallach.calwatch2
+
+import android.graphics.Canvas
+import android.graphics.Paint
+import android.graphics.Path
+
+/**
+ * A compact, immutable list of drawing commands for one layer of the watchface. [ClockFace] used to
+ * mix all the geometry (where's the tick mark for 7 o'clock? how big is the battery dot?) in with
+ * the Canvas calls, so the only way to avoid recomputing it was ad-hoc path caches. Now, the
+ * geometry code builds a DisplayList, tagged with a [key] that summarizes everything it
+ * depends on (the same keys [LayerCompositor] uses), and replaying it is nothing but Canvas calls.
+ * If the key hasn't changed, neither has the list, so we skip the geometry entirely.
+ *
+ * There are four kinds of primitives:
+ * * a [Shape], which is any number of quadrilaterals (radial tick marks, stipple diamonds) merged
+ *   into a single path when the list is built, and then drawn with one or more paints,
+ * * a prebuilt [Path], such as the calendar wedges from [WedgeGeometry],
+ * * a circle,
+ * * a string of text, drawn through [GlyphCache], with an optional shadow.
+ *
+ * Since a DisplayList is plain data, it's also easy to look at without a Canvas: see [commandCount],
+ * [quadCount], and [dump]. That's also how the unit tests check what [ClockFace] builds.
+ */
+class DisplayList private constructor(
+    val key: Long,
+    private val ops: IntArray,
+    private val paints: Array<Paint?>,
+    private val objects: Array<Any?>, // a Path for SHAPE and PATH, a String for TEXT
+    private val shadows: Array<Paint?>,
+    private val floats: FloatArray, // three per command: x, y, and radius for CIRCLE
+    val quadCount: Int
+) {
+    /** The four kinds of command; see above. */
+    enum class Kind { SHAPE, PATH, CIRCLE, TEXT }
+
+    val commandCount: Int
+        get() = ops.size
+
+    /** How many commands of the given kind are in the list. A shape drawn with two paints counts twice. */
+    fun commandCount(kind: Kind): Int {
+        val op = when (kind) {
+            Kind.SHAPE -> OP_SHAPE
+            Kind.PATH -> OP_PATH
+            Kind.CIRCLE -> OP_CIRCLE
+            Kind.TEXT -> OP_TEXT
+        }
+        return ops.count { it == op }
+    }
+
+    /** Draws everything in the list onto the canvas, in order. */
+    fun replay(canvas: Canvas, glyphs: GlyphCache) {
+        for (i in ops.indices) {
+            val paint = requireNotNull(paints[i])
+            when (ops[i]) {
+                OP_SHAPE, OP_PATH -> canvas.drawPath(objects[i] as Path, paint)
+                OP_CIRCLE -> canvas.drawCircle(floats[i * 3], floats[i * 3 + 1], floats[i * 3 + 2], paint)
+                OP_TEXT -> glyphs.draw(canvas, objects[i] as String, floats[i * 3], floats[i * 3 + 1], paint, shadows[i])
+            }
+        }
+    }
+
+    /** One line per command, for logging and for comparing lists. */
+    fun dump(): String = ops.indices.joinToString("\n") {
+        val x = floats[it * 3]
+        val y = floats[it * 3 + 1]
+        when (ops[it]) {
+            OP_SHAPE -> "shape"
+            OP_PATH -> "path"
+            OP_CIRCLE -> "circle (%.1f, %.1f) r=%.1f".format(x, y, floats[it * 3 + 2])
+            else -> "text \"${objects[it]}\" (%.1f, %.1f)%s".format(x, y, if (shadows[it] != null) " +shadow" else "")
+        }
+    }
+
+    override fun toString() = "DisplayList(key(%016x), commands($commandCount), quads($quadCount))".format(key)
+
+    /**
+     * Geometry made of quadrilaterals, accumulated into one path. You can make one of these on its
+     * own if all you want is the [path], which is how [ClockFace] builds the hands.
+     */
+    class Shape {
+        val path = Path()
+        var quads = 0
+            private set
+
+        /** Adds the quadrilateral with the given corners, in order. */
+        fun quad(x1: Float, y1: Float, x2: Float, y2: Float, x3: Float, y3: Float, x4: Float, y4: Float) {
+            path.moveTo(x1, y1)
+            path.lineTo(x2, y2)
+            path.lineTo(x3, y3)
+            path.lineTo(x4, y4)
+            path.close()
+            quads++
+        }
+    }
+
+    /** Accumulates commands; call [build] at the end to get the finished list. */
+    class Builder(private val key: Long) {
+        private val ops = ArrayList<Int>()
+        private val paints = ArrayList<Paint?>()
+        private val objects = ArrayList<Any?>()
+        private val shadows = ArrayList<Paint?>()
+        private val floats = ArrayList<Float>()
+        private var quads = 0
+
+        private fun add(op: Int, paint: Paint, obj: Any?, shadow: Paint? = null, x: Float = 0f, y: Float = 0f, r: Float = 0f) {
+            ops += op
+            paints += paint
+            objects += obj
+            shadows += shadow
+            floats += x
+            floats += y
+            floats += r
+        }
+
+        /** Builds a [Shape] with [block], then draws it with each of the given paints, in order. */
+        fun shape(vararg paints: Paint, block: (Shape) -> Unit) {
+            val shape = Shape()
+            block(shape)
+            if (shape.quads == 0) return
+
+            quads += shape.quads
+            paints.forEach { add(OP_SHAPE, it, shape.path) }
+        }
+
+        fun path(path: Path, paint: Paint) = add(OP_PATH, paint, path)
+
+        fun circle(cx: Float, cy: Float, radius: Float, paint: Paint) = add(OP_CIRCLE, paint, null, x = cx, y = cy, r = radius)
+
+        /** Text with its baseline starting at (x, y), as with [Canvas.drawText]. The shadow, if any, goes first. */
+        fun text(text: String, x: Float, y: Float, paint: Paint, shadow: Paint?) = add(OP_TEXT, paint, text, shadow, x, y)
+
+        fun build() = DisplayList(
+            key,
+            ops.toIntArray(),
+            paints.toTypedArray(),
+            objects.toTypedArray(),
+            shadows.toTypedArray(),
+            floats.toFloatArray(),
+            quads
+        )
+    }
+
+    companion object {
+        private const val OP_SHAPE = 0
+        private const val OP_PATH = 1
+        private const val OP_CIRCLE = 2
+        private const val OP_TEXT = 3
+    }
+}
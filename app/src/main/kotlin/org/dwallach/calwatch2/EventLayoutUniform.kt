@@ -28,14 +28,21 @@ object EventLayoutUniform {
      * events visible in the next twelve hours, with events that would be off-screen
      * clipped to the 12-hour dial.
      */
-    fun clipToVisible(events: List<CalendarEvent>): Pair<List<EventWrapper>, Int> {
+    fun clipToVisible(events: List<CalendarEvent>): Pair<List<EventWrapper>, Int> = layout(clip(events))
+
+    /**
+     * First half of [clipToVisible]: clips the events to the 12-hour dial, starting at the current
+     * hour, and converts them to local time. The result is everything that the layout depends on,
+     * so if it hasn't changed, neither will the layout.
+     */
+    fun clip(events: List<CalendarEvent>): List<CalendarEvent> {
         val gmtOffset = TimeWrapper.gmtOffset
 
         val localClipTime = TimeWrapper.localFloorHour
         val clipStartMillis = localClipTime - gmtOffset // convert from localtime back to GMT time for looking at events
         val clipEndMillis = clipStartMillis + 43200000 // 12 hours later
 
-        val clippedEvents = events.map {
+        return events.map {
             it.clip(clipStartMillis, clipEndMillis)
         }.filter {
             // require events to be onscreen
@@ -45,9 +52,17 @@ object EventLayoutUniform {
                 // require events to have some non-zero thickness (clipping can sometimes yield events that start and end at the same time)
                 it.endTime > it.startTime
         }.map {
-            // apply GMT offset, and then wrap with EventWrapper, where the layout will happen
-            EventWrapper(it + gmtOffset)
+            // apply GMT offset
+            it + gmtOffset
         }
+    }
+
+    /**
+     * Second half of [clipToVisible]: wraps the clipped events with [EventWrapper] and
+     * runs the constraint solver to assign their levels.
+     */
+    fun layout(events: List<CalendarEvent>): Pair<List<EventWrapper>, Int> {
+        val clippedEvents = events.map { EventWrapper(it) }
 
         // now, we run off and do screen layout
         val lMaxLevel: Int
@@ -75,6 +90,16 @@ object EventLayoutUniform {
 
     private const val MAXLEVEL = 10000 // we'll go from 0 to MAXLEVEL, inclusive
 
+    /** Number of rows in the solver's tableau for the most recent layout, for benchmarking. */
+    @Volatile
+    var lastSolverRows: Int = 0
+        private set
+
+    /** Number of pivots the solver needed for the most recent layout, for benchmarking. */
+    @Volatile
+    var lastSolverPivots: Long = 0
+        private set
+
     /**
      * Takes a list of calendar events and mutates their minLevel and maxLevel for calendar side-by-side
      * non-overlapping layout.
@@ -86,6 +111,8 @@ object EventLayoutUniform {
         Log.i(TAG, "Running uniform event layout with %d events".format(events.size))
 
         val nEvents = events.size
+        lastSolverRows = 0
+        lastSolverPivots = 0
         if (nEvents == 0) return true // degenerate case, in which we trivially succeed
 
         val overlapCounter = IntArray(nEvents)
@@ -94,7 +121,6 @@ object EventLayoutUniform {
             // not sure this is necessary but it can't hurt
             it.minLevel = 0
             it.maxLevel = 0
-            it.path = null
         }
 
         try {
@@ -162,6 +188,9 @@ object EventLayoutUniform {
             solver.solve()
 
             Log.v(TAG, "Event layout success.")
+            lastSolverRows = solver.rowCount
+            lastSolverPivots = solver.pivotCount
+            PerfTrace.record(PerfTrace.Event.SOLVER_PIVOTS, solver.pivotCount, nEvents)
 
             for (i in 0 until nEvents) {
                 val e = events[i]
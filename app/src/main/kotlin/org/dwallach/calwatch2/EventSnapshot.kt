@@ -0,0 +1,205 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+package org.dwallach.calwatch2
+
+import android.content.Context
+import android.os.SystemClock
+import android.util.Log
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+private val TAG = "EventSnapshot"
+
+/**
+ * When the watchface process gets killed and restarted, which Wear does with some regularity, we
+ * used to draw an empty calendar until the provider query and the Cassowary layout finished. Here,
+ * we save a compact binary snapshot of the last result -- the raw events and the laid-out visible
+ * events with their levels -- in the app's files directory. At startup, we memory-map it and,
+ * if it was computed for the same hour and the same GMT offset as right now, we seed [ClockState]
+ * with it. The live fetch still happens and replaces the snapshot when it arrives.
+ *
+ * File format, all big-endian:
+ *
+ * * header: magic (int), version (int), localFloorHour (long), gmtOffset (int), maxLevel (int),
+ *   number of raw events (int), number of visible events (int)
+ * * raw events: startTime (long), endTime (long), displayColor (int)
+ * * visible events: startTime (long), endTime (long), displayColor (int), minLevel (int), maxLevel (int)
+ */
+object EventSnapshot {
+    private const val FILENAME = "calendar-snapshot.bin"
+    private const val MAGIC = 0x43574556 // "CWEV"
+    private const val VERSION = 1
+
+    private const val HEADER_BYTES = 4 + 4 + 8 + 4 + 4 + 4 + 4
+    private const val RAW_EVENT_BYTES = 8 + 8 + 4
+    private const val VISIBLE_EVENT_BYTES = 8 + 8 + 4 + 4 + 4
+
+    // sanity limit, so a corrupted count can't make us allocate something absurd
+    private const val MAX_EVENTS = 10000
+
+    private fun snapshotFile(context: Context) = File(context.filesDir, FILENAME)
+
+    /**
+     * Writes the snapshot. The layout must have been computed for the given [localFloorHour]
+     * and [gmtOffset]. Meant to be called from a background thread. We write to a temporary
+     * file and then rename it, so a reader never sees a half-written snapshot.
+     */
+    fun save(
+        context: Context,
+        eventList: List<CalendarEvent>,
+        layoutPair: Pair<List<EventWrapper>, Int>,
+        localFloorHour: Long,
+        gmtOffset: Int
+    ) {
+        val (visibleEventList, maxLevel) = layoutPair
+
+        if (eventList.size > MAX_EVENTS || visibleEventList.size > MAX_EVENTS) {
+            Log.w(TAG, "save: too many events (${eventList.size}, ${visibleEventList.size}), not saving")
+            return
+        }
+
+        val startTimeNano = SystemClock.elapsedRealtimeNanos()
+
+        val buffer = ByteBuffer.allocate(
+            HEADER_BYTES + eventList.size * RAW_EVENT_BYTES + visibleEventList.size * VISIBLE_EVENT_BYTES
+        )
+
+        with(buffer) {
+            putInt(MAGIC)
+            putInt(VERSION)
+            putLong(localFloorHour)
+            putInt(gmtOffset)
+            putInt(maxLevel)
+            putInt(eventList.size)
+            putInt(visibleEventList.size)
+
+            eventList.forEach {
+                putLong(it.startTime)
+                putLong(it.endTime)
+                putInt(it.displayColor)
+            }
+
+            visibleEventList.forEach {
+                putLong(it.calendarEvent.startTime)
+                putLong(it.calendarEvent.endTime)
+                putInt(it.calendarEvent.displayColor)
+                putInt(it.minLevel)
+                putInt(it.maxLevel)
+            }
+        }
+
+        val file = snapshotFile(context)
+        val tmpFile = File(file.parentFile, "$FILENAME.tmp")
+
+        try {
+            FileOutputStream(tmpFile).use { it.write(buffer.array()) }
+            if (!tmpFile.renameTo(file)) {
+                Log.w(TAG, "save: rename failed")
+                tmpFile.delete()
+                return
+            }
+        } catch (e: IOException) {
+            Log.w(TAG, "save: failed to write snapshot", e)
+            tmpFile.delete()
+            return
+        }
+
+        val endTimeNano = SystemClock.elapsedRealtimeNanos()
+        Log.i(TAG, "save: ${buffer.capacity()} bytes, ${visibleEventList.size} visible events, %.3f ms"
+            .format((endTimeNano - startTimeNano) / 1000000.0))
+    }
+
+    /**
+     * Reads the snapshot and, if it's still valid for the current hour and timezone, loads
+     * it into [ClockState]. Returns true if that happened. Call this on the UI thread,
+     * before the first frame, and only when we have calendar permission.
+     */
+    fun restore(context: Context): Boolean {
+        val startTimeNano = SystemClock.elapsedRealtimeNanos()
+        val file = snapshotFile(context)
+
+        if (!file.exists()) {
+            Log.i(TAG, "restore: no snapshot")
+            return false
+        }
+
+        val buffer = try {
+            RandomAccessFile(file, "r").use { raf ->
+                // the mapping remains valid after the channel is closed
+                raf.channel.map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+            }
+        } catch (e: IOException) {
+            Log.w(TAG, "restore: failed to map snapshot", e)
+            return false
+        }
+
+        val result = try {
+            parse(buffer)
+        } catch (e: BufferUnderflowException) {
+            Log.w(TAG, "restore: truncated snapshot", e)
+            null
+        }
+
+        if (result == null) {
+            file.delete() // it's useless, so don't bother with it next time
+            return false
+        }
+
+        val (eventList, layoutPair) = result
+        ClockState.setEventList(eventList, layoutPair)
+
+        val endTimeNano = SystemClock.elapsedRealtimeNanos()
+        Log.i(TAG, "restore: ${layoutPair.first.size} visible events, %.3f ms".format((endTimeNano - startTimeNano) / 1000000.0))
+        return true
+    }
+
+    private fun parse(buffer: ByteBuffer): Pair<List<CalendarEvent>, Pair<List<EventWrapper>, Int>>? {
+        with(buffer) {
+            val magic = int
+            val version = int
+            if (magic != MAGIC || version != VERSION) {
+                Log.w(TAG, "restore: bad magic (%08x) or version ($version)".format(magic))
+                return null
+            }
+
+            val snapshotFloorHour = long
+            val snapshotGmtOffset = int
+            val maxLevel = int
+            val numRaw = int
+            val numVisible = int
+
+            if (numRaw !in 0..MAX_EVENTS || numVisible !in 0..MAX_EVENTS) {
+                Log.w(TAG, "restore: bogus event counts ($numRaw, $numVisible)")
+                return null
+            }
+
+            // The layout is only good for the hour (and timezone) in which it was computed.
+            TimeWrapper.update()
+            if (snapshotFloorHour != TimeWrapper.localFloorHour || snapshotGmtOffset != TimeWrapper.gmtOffset) {
+                Log.i(TAG, "restore: snapshot is stale, ignoring")
+                return null
+            }
+
+            val eventList = List(numRaw) { CalendarEvent(long, long, int) }
+
+            val visibleEventList = List(numVisible) {
+                EventWrapper(CalendarEvent(long, long, int)).apply {
+                    minLevel = int
+                    this.maxLevel = int
+                }
+            }
+
+            return Pair(eventList, Pair(visibleEventList, maxLevel))
+        }
+    }
+}
@@ -7,8 +7,6 @@
 
 package org.dwallach.calwatch2
 
-import android.graphics.Path
-
 /**
  * This data structure contains each calendar event. We only care about a handful of fields.
  * It's separate from [EventWrapper] because we might want to save these things for later, while the
@@ -33,11 +31,6 @@ data class CalendarEvent(val startTime: Long, val endTime: Long, val displayColo
 
 /** This class wraps a calendar event with a number of other fields. */
 class EventWrapper(val calendarEvent: CalendarEvent) {
-    /**
-     * The first time this event is rendered, it will be rendered to a Path, so subsequent calls to
-     * render it will go much faster.
-     */
-    var path: Path? = null
     val paint = PaintCan.getCalendarPaint(calendarEvent.displayColor)
     var minLevel: Int = 0
     var maxLevel: Int = 0
@@ -0,0 +1,106 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+package org.dwallach.calwatch2
+
+/**
+ * A fixed-size, log-scale histogram of durations, in nanoseconds. Every power of two is split into
+ * [SUB_BUCKETS] buckets, so any recorded value lands in a bucket whose bounds are within 25% of it,
+ * and the whole thing fits in one small array that never grows. Recording is a couple of bit
+ * operations and an array increment, with no allocation, so it's fine to do several times per frame.
+ *
+ * Averages hide the frames we actually care about, the ones that miss their deadline, so what we
+ * report is percentiles: see [snapshot].
+ */
+class FrameHistogram {
+    private val counts = LongArray(NUM_BUCKETS)
+    private var total: Long = 0
+    private var max: Long = 0
+    private var sum: Long = 0
+
+    /** Records one duration. Negative values (clock weirdness) are counted as zero. */
+    fun record(nanos: Long) {
+        val value = if (nanos < 0) 0 else nanos
+        counts[bucketOf(value)]++
+        total++
+        sum += value
+        if (value > max) max = value
+    }
+
+    fun reset() {
+        counts.fill(0)
+        total = 0
+        max = 0
+        sum = 0
+    }
+
+    /** The smallest value such that at least [fraction] of the samples are no bigger, to within a bucket. */
+    fun percentile(fraction: Double): Long {
+        if (total == 0L) return 0
+
+        val threshold = (fraction * total).toLong().coerceIn(1, total)
+        var seen = 0L
+        for (i in counts.indices) {
+            seen += counts[i]
+            if (seen >= threshold) return minOf(upperBound(i), max)
+        }
+        return max
+    }
+
+    /** An immutable summary of the current state, suitable for logging or for comparing runs. */
+    class Snapshot(
+        val count: Long,
+        val p50Nanos: Long,
+        val p90Nanos: Long,
+        val p99Nanos: Long,
+        val maxNanos: Long,
+        val meanNanos: Long
+    ) {
+        override fun toString() =
+            "n($count), p50/p90/p99/max (ms): %.3f / %.3f / %.3f / %.3f".format(
+                p50Nanos / 1000000.0, p90Nanos / 1000000.0, p99Nanos / 1000000.0, maxNanos / 1000000.0
+            )
+    }
+
+    fun snapshot() = Snapshot(
+        total,
+        percentile(0.50),
+        percentile(0.90),
+        percentile(0.99),
+        max,
+        if (total == 0L) 0 else sum / total
+    )
+
+    companion object {
+        private const val SUB_BUCKET_BITS = 2
+        private const val SUB_BUCKETS = 1 shl SUB_BUCKET_BITS
+
+        // 63 powers of two is more than enough for any Long, but the bucket math is simpler if we don't care
+        private const val NUM_BUCKETS = 64 * SUB_BUCKETS
+
+        /**
+         * Values below [SUB_BUCKETS] get their own bucket. Above that, the bucket is the position of the
+         * highest set bit, plus the next [SUB_BUCKET_BITS] bits below it.
+         */
+        private fun bucketOf(value: Long): Int {
+            if (value < SUB_BUCKETS) return value.toInt()
+            val exponent = 63 - java.lang.Long.numberOfLeadingZeros(value) // >= SUB_BUCKET_BITS
+            val mantissa = ((value ushr (exponent - SUB_BUCKET_BITS)) and (SUB_BUCKETS - 1).toLong()).toInt()
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa
+        }
+
+        /** The largest value that lands in the given bucket. */
+        private fun upperBound(bucket: Int): Long {
+            if (bucket < SUB_BUCKETS) return bucket.toLong()
+            val exponent = bucket / SUB_BUCKETS - 1 + SUB_BUCKET_BITS
+            val mantissa = (bucket % SUB_BUCKETS).toLong()
+            if (exponent >= 62) return Long.MAX_VALUE
+            val shift = exponent - SUB_BUCKET_BITS
+            return ((SUB_BUCKETS + mantissa + 1) shl shift) - 1
+        }
+    }
+}
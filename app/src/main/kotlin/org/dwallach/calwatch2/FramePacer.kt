@@ -0,0 +1,118 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+package org.dwallach.calwatch2
+
+import android.os.Handler
+import android.os.Looper
+import android.util.Log
+import kotlin.math.PI
+import kotlin.math.abs
+
+private val TAG = "FramePacer"
+
+/**
+ * When the second hand is sweeping, we used to call invalidate() at the end of every frame, so we'd
+ * redraw as fast as the system would let us. But our second hand isn't linear (see
+ * [ClockFace.nonLinearSeconds]): it spends most of each second creeping along and then snaps to the
+ * next second. During the creep, the tip moves a pixel every hundred milliseconds or so, and
+ * most of those 60 Hz frames draw exactly the same thing.
+ *
+ * So instead, after each frame, we figure out how long it'll be until the second hand's tip has
+ * moved far enough to matter ([MIN_STEP_PIXELS]), and schedule the next frame for then. That gets
+ * us full frame rate during the snap and a handful of frames per second during the dwell. The delays
+ * come from a table, indexed by where we are within the second, rebuilt whenever the size changes.
+ * We also put a floor on the frame interval when the battery is getting low.
+ *
+ * Everything here happens on the UI thread.
+ */
+class FramePacer(private val invalidate: () -> Unit) {
+    private val handler = Handler(Looper.getMainLooper())
+    private val invalidateRunnable = Runnable { invalidate() }
+
+    // delay until the next useful frame, in milliseconds, for each millisecond within the second
+    private val delayTable = LongArray(1000) { MIN_FRAME_MILLIS }
+    private var radius = 0
+
+    /** Call this when the surface size changes. */
+    fun setSize(width: Int, height: Int) {
+        val newRadius = minOf(width, height) / 2
+        if (newRadius == radius || newRadius <= 0) return
+        radius = newRadius
+
+        // radians per unit on our 60-unit dial, times how far out the tip of the second hand is
+        val pixelsPerUnit = PI * 2.0 / 60.0 * SECOND_HAND_TIP * radius
+        val minStepUnits = MIN_STEP_PIXELS / pixelsPerUnit
+
+        var minDelay = Long.MAX_VALUE
+        var maxDelay = 0L
+
+        for (ms in 0 until 1000) {
+            val start = ClockFace.nonLinearSeconds(ms / 1000.0)
+
+            // walk forward, a millisecond at a time, until the hand has moved far enough or we've
+            // waited as long as we're willing to
+            var delay = 1L
+            while (delay < MAX_FRAME_MILLIS &&
+                abs(ClockFace.nonLinearSeconds((ms + delay) / 1000.0) - start) < minStepUnits
+            ) delay++
+
+            delayTable[ms] = delay.coerceAtLeast(MIN_FRAME_MILLIS)
+            if (delayTable[ms] < minDelay) minDelay = delayTable[ms]
+            if (delayTable[ms] > maxDelay) maxDelay = delayTable[ms]
+        }
+
+        Log.i(TAG, "setSize: radius($radius), frame delays from $minDelay to $maxDelay ms")
+    }
+
+    /**
+     * How long until the next frame is worth drawing, in milliseconds, given the current
+     * (local) time and the battery state.
+     */
+    fun nextFrameDelay(localTime: Long): Long {
+        val delay = delayTable[(localTime % 1000L).toInt().let { if (it < 0) it + 1000 else it }]
+        return if (BatteryWrapper.isCharging) delay else delay.coerceAtLeast(batteryFloorMillis(BatteryWrapper.batteryPct))
+    }
+
+    /** Call this at the end of a frame when the second hand is sweeping. Schedules the next frame. */
+    fun scheduleNext(localTime: Long) {
+        val delay = nextFrameDelay(localTime)
+        TimeWrapper.frameScheduled(delay)
+
+        handler.removeCallbacks(invalidateRunnable)
+        if (delay <= MIN_FRAME_MILLIS)
+            invalidate() // the display's vsync will pace us just fine
+        else
+            handler.postDelayed(invalidateRunnable, delay)
+    }
+
+    /** Call this when we no longer need sub-second frames (ambient mode, invisible, etc.). */
+    fun cancel() {
+        handler.removeCallbacks(invalidateRunnable)
+    }
+
+    companion object {
+        /** One frame at 60 Hz. We never ask for anything faster than that. */
+        const val MIN_FRAME_MILLIS = 16L
+
+        /** Even when the second hand is barely moving, we draw at least this often. */
+        const val MAX_FRAME_MILLIS = 250L
+
+        /** How far the tip of the second hand has to move before it's worth drawing a new frame. */
+        private const val MIN_STEP_PIXELS = 1.0
+
+        /** Where the tip of the second hand is, as a fraction of the radius (see ClockFace.buildHandPaths). */
+        private const val SECOND_HAND_TIP = 0.95
+
+        /** With the battery running down, we're willing to make the snap a little less smooth. */
+        private fun batteryFloorMillis(batteryPct: Float) = when {
+            batteryPct < 0.15f -> 66L // 15 Hz
+            batteryPct < 0.30f -> 33L // 30 Hz
+            else -> MIN_FRAME_MILLIS
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+package org.dwallach.calwatch2
+
+import android.graphics.Canvas
+import android.graphics.Paint
+import android.graphics.Path
+import android.util.Log
+import java.util.Locale
+
+private val TAG = "GlyphCache"
+
+/**
+ * Every bit of text on the face -- the numerals, the month and day of week -- used to go through
+ * text shaping twice (once for the shadow, once for the text itself), plus font metrics and
+ * measureText() calls, every time we drew it. Here, we convert each string to a [Path] once per
+ * paint, with its baseline at the origin, and then drawing it is just two drawPath() calls. The
+ * shadow and the text share the same path; only the paint differs.
+ *
+ * Entries are tied to a specific [Paint] object and remember its text size and alignment, so a new
+ * [PaintCan] (i.e., a new screen size) or a change in locale naturally leads to new paths. There
+ * are only ever a handful of strings in use, so rather than anything fancy, we just start over
+ * if we ever accumulate more than [MAX_ENTRIES].
+ */
+class GlyphCache {
+    private class Entry(
+        val text: String,
+        val paint: Paint,
+        val textSize: Float,
+        val textAlign: Paint.Align,
+        val path: Path,
+        val width: Float
+    )
+
+    private class MetricsEntry(val paint: Paint, val textSize: Float, val metrics: Paint.FontMetrics)
+
+    private val entries = ArrayList<Entry>()
+    private val metricsEntries = ArrayList<MetricsEntry>()
+    private var locale: Locale? = null
+
+    private var hits = 0
+    private var misses = 0
+
+    /** Throws everything away. */
+    fun clear() {
+        entries.clear()
+        metricsEntries.clear()
+    }
+
+    /** The paint's font metrics. Don't modify the result; it's shared. */
+    fun metrics(paint: Paint): Paint.FontMetrics {
+        checkLocale()
+        for (i in metricsEntries.indices) {
+            val e = metricsEntries[i]
+            if (e.paint === paint && e.textSize == paint.textSize) return e.metrics
+        }
+
+        val metrics = paint.fontMetrics
+        metricsEntries.add(MetricsEntry(paint, paint.textSize, metrics))
+        return metrics
+    }
+
+    /** Same as [Paint.measureText], but only measured once. */
+    fun width(text: String, paint: Paint) = lookup(text, paint).width
+
+    /**
+     * Draws the text with its baseline at (x, y), the same as [Canvas.drawText] would,
+     * with the shadow first, if there is one.
+     */
+    fun draw(canvas: Canvas, text: String, x: Float, y: Float, paint: Paint, shadowPaint: Paint?) {
+        val path = lookup(text, paint).path
+
+        canvas.save()
+        canvas.translate(x, y)
+        if (shadowPaint != null)
+            canvas.drawPath(path, shadowPaint)
+        canvas.drawPath(path, paint)
+        canvas.restore()
+    }
+
+    private fun lookup(text: String, paint: Paint): Entry {
+        checkLocale()
+        for (i in entries.indices) {
+            val e = entries[i]
+            if (e.paint === paint && e.text == text && e.textSize == paint.textSize && e.textAlign == paint.textAlign) {
+                hits++
+                return e
+            }
+        }
+
+        misses++
+        if (entries.size >= MAX_ENTRIES) {
+            Log.v(TAG, "lookup: too many entries, starting over")
+            entries.clear()
+        }
+
+        val path = Path()
+        paint.getTextPath(text, 0, text.length, 0f, 0f, path)
+        val entry = Entry(text, paint, paint.textSize, paint.textAlign, path, paint.measureText(text))
+        entries.add(entry)
+        return entry
+    }
+
+    private fun checkLocale() {
+        val current = Locale.getDefault()
+        if (current != locale) {
+            if (locale != null) Log.i(TAG, "locale changed to $current, dropping glyphs")
+            locale = current
+            clear()
+        }
+    }
+
+    fun report() {
+        Log.i(TAG, "glyphs: entries(${entries.size}), hits($hits), misses($misses)")
+    }
+
+    companion object {
+        private const val MAX_ENTRIES = 32
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+package org.dwallach.calwatch2
+
+/**
+ * Why something needs to be redrawn. We used to have exactly one answer to that question -- wipe
+ * every cache in every [ClockFace] -- so a complication refreshing its text would throw away all the
+ * calendar wedges. Now, whoever notices a change posts it with [Utilities.redrawEverything], and
+ * each cache in ClockFace declares which of these it depends on, so it only gets dropped
+ * when it has to be.
+ */
+enum class Invalidation {
+    /** The events changed, or we gained or lost calendar permission. */
+    CALENDAR,
+
+    /** Complication data or visibility changed. */
+    COMPLICATION,
+
+    /** The user's preferences changed: face mode, day/date, seconds hand. */
+    STYLE,
+
+    /** The surface size or the flat-bottom inset changed. */
+    SIZE,
+
+    /** We entered or left ambient mode. Every cache is kept per drawing style, so nothing depends on this. */
+    AMBIENT,
+
+    /** The battery level or charging state changed. */
+    BATTERY;
+
+    /** This reason as a bit, for building up dependency sets without allocating anything. */
+    val mask: Int
+        get() = 1 shl ordinal
+}
@@ -0,0 +1,148 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+package org.dwallach.calwatch2
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Color
+import android.util.Log
+
+private val TAG = "LayerCompositor"
+
+/**
+ * Most of the watchface -- the calendar wedges, the tick marks, the month box -- changes at most once
+ * a minute, but when the second hand is sweeping, we're redrawing all of it many times a second.
+ * This class caches each of those "static" layers in its own offscreen [Bitmap]. Every frame, the
+ * caller supplies a key for each layer that summarizes everything the layer depends on. If the key
+ * matches what we rendered last time, and the size hasn't changed, we just blit the bitmap. Otherwise,
+ * we call the render function to redraw the layer into its bitmap first.
+ *
+ * To keep the per-frame path allocation-free, the render functions should be allocated once
+ * and reused, rather than passed as fresh capturing lambdas every frame, and the keys are
+ * plain longs, built up with [mix].
+ *
+ * Each layer can also have several [variants], each with its own bitmap, allocated only once
+ * it's used. [ClockFace] uses one variant per drawing style, so flipping in and out of ambient
+ * mode doesn't throw away the other mode's layers; each minute's ambient tick is then just
+ * a couple of blits plus the hands.
+ *
+ * These bitmaps belong to one [ClockFace]. The face and the month box, which every ClockFace
+ * draws the same way, go through [SharedLayerCache] instead.
+ */
+class LayerCompositor(private val variants: Int = 1) {
+    enum class Layer {
+        CALENDAR,
+        FACE,
+        MONTH_BOX
+    }
+
+    private class Entry {
+        var bitmap: Bitmap? = null
+        var canvas: Canvas? = null
+        var key: Long = 0
+        var valid: Boolean = false
+        var renders: Int = 0
+        var blits: Int = 0
+    }
+
+    // indexed by layer.ordinal * variants + variant
+    private val entries = Array(Layer.values().size * variants) { Entry() }
+
+    private var width: Int = 0
+    private var height: Int = 0
+
+    /** Call this whenever the surface size changes. Throws away all the bitmaps if necessary. */
+    fun setSize(width: Int, height: Int) {
+        if (width == this.width && height == this.height) return
+
+        Log.v(TAG, "setSize: $width x $height")
+        this.width = width
+        this.height = height
+
+        entries.forEach {
+            it.bitmap?.recycle()
+            it.bitmap = null
+            it.canvas = null
+            it.valid = false
+        }
+    }
+
+    /** Forces every variant of the given layer to be re-rendered the next time it's drawn. */
+    fun invalidate(layer: Layer) {
+        for (v in 0 until variants) entries[layer.ordinal * variants + v].valid = false
+    }
+
+    /** Forces every layer to be re-rendered the next time it's drawn. */
+    fun invalidateAll() = entries.forEach { it.valid = false }
+
+    /**
+     * Draws the given layer onto the canvas, calling [render] to refresh the cached bitmap first
+     * if the [key] has changed or the layer has been invalidated.
+     */
+    fun draw(canvas: Canvas, layer: Layer, key: Long, render: (Canvas) -> Unit) = draw(canvas, layer, 0, key, render)
+
+    /** As above, but for one particular [variant] of the layer, which is cached separately from the others. */
+    fun draw(canvas: Canvas, layer: Layer, variant: Int, key: Long, render: (Canvas) -> Unit) {
+        if (width <= 0 || height <= 0) {
+            // we don't know how big we are yet, so no caching
+            render(canvas)
+            return
+        }
+
+        val entry = entries[layer.ordinal * variants + variant]
+
+        val bitmap = entry.bitmap ?: Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888).also {
+            entry.bitmap = it
+            entry.canvas = Canvas(it)
+            entry.valid = false
+        }
+
+        if (!entry.valid || entry.key != key) {
+            bitmap.eraseColor(Color.TRANSPARENT)
+            render(requireNotNull(entry.canvas))
+            entry.key = key
+            entry.valid = true
+            entry.renders++
+            PerfTrace.record(PerfTrace.Event.CACHE_MISS, 0, layer.ordinal)
+        }
+
+        canvas.drawBitmap(bitmap, 0f, 0f, null)
+        entry.blits++
+    }
+
+    /** Logs how often each layer was actually re-rendered versus simply blitted. */
+    fun report() {
+        Layer.values().forEach {
+            var renders = 0
+            var blits = 0
+            var allocated = 0
+            for (v in 0 until variants) {
+                val entry = entries[it.ordinal * variants + v]
+                renders += entry.renders
+                blits += entry.blits
+                if (entry.bitmap != null) allocated++
+            }
+            Log.i(TAG, "layer $it: renders($renders), blits($blits), variants in use($allocated)")
+            PerfTrace.record(PerfTrace.Event.CACHE_HITS, blits.toLong(), it.ordinal)
+        }
+    }
+
+    companion object {
+        private const val FNV_PRIME = 0x100000001b3L
+
+        /** Starting value for a layer key. */
+        const val KEY_SEED = -0x340d631b7bdddcdbL // FNV-1a offset basis
+
+        /** Folds another value into a layer key. */
+        fun mix(key: Long, value: Long): Long = (key xor value) * FNV_PRIME
+
+        fun mix(key: Long, value: Int): Long = mix(key, value.toLong())
+
+        fun mix(key: Long, value: Boolean): Long = mix(key, if (value) 1L else 0L)
+    }
+}
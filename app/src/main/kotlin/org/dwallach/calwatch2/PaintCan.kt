@@ -17,7 +17,8 @@ private val TAG = "PaintCan"
  * the same color twice.
  */
 class PaintCan(private val radius: Float) {
-    private var palette: Array<Array<Paint?>>
+    // one row per style, built on demand by buildPalette()
+    private val palettes = arrayOfNulls<Array<Paint?>>(Style.MAX.ordinal)
 
     enum class Style {
         NORMAL,
@@ -47,88 +48,89 @@ class PaintCan(private val radius: Float) {
         MAX
     }
 
-    /**
-     * Create all the Paint instances used in the watch face. Call this every time the
-     * watch radius changes, perhaps because of a resize event on the phone. Make sure
-     * to call this *before* trying to get() any colors, or you'll get a NullPointerException.
-     */
+    private val textSize = radius / 3f
+    private val smTextSize = radius / 6f
+    private val lineWidth = radius / 20f
+
     init {
         Log.v(TAG, "initPaintBucket: $radius")
+    }
 
-        val textSize = radius / 3f
-        val smTextSize = radius / 6f
-        val lineWidth = radius / 20f
-
-        palette = Array(Style.MAX.ordinal) { arrayOfNulls<Paint>(Brush.MAX.ordinal) }
-
-        for (style in Style.values()) {
-            if (style == Style.MAX) break
-            val i = style.ordinal
-
-            // Quoth the Google: "You can use color elements for up to 5 percent of total pixels."
-            // http://developer.android.com/design/wear/watchfaces.html
-            palette[i][Brush.BATTERY_LOW.ordinal] = watchfacePaint(Color.YELLOW, style, smTextSize, lineWidth / 3f, true)
-            palette[i][Brush.BATTERY_CRITICAL.ordinal] = watchfacePaint(Color.RED, style, smTextSize, lineWidth / 3f, true)
-
-            palette[i][Brush.SECOND_HAND.ordinal] = watchfacePaint(Color.RED, style, smTextSize, lineWidth / 3f)
-            palette[i][Brush.HAND_SHADOW.ordinal] = watchfacePaint(Color.BLACK, style, smTextSize, lineWidth / 8f)
-            palette[i][Brush.TICK_SHADOW.ordinal] = watchfacePaint(Color.BLACK, style, smTextSize, lineWidth / 8f)
-            palette[i][Brush.MINUTE_HAND.ordinal] = watchfacePaint(Color.WHITE, style, textSize, lineWidth)
-            palette[i][Brush.HOUR_HAND.ordinal] = watchfacePaint(Color.WHITE, style, textSize, lineWidth * 1.5f)
-            palette[i][Brush.ARC_SHADOW.ordinal] = watchfacePaint(Color.BLACK, style, smTextSize, lineWidth / 6f)
-            palette[i][Brush.MONTHBOX_TEXT.ordinal] = watchfacePaint(Color.WHITE, style, smTextSize, lineWidth / 3f)
-            palette[i][Brush.SMALL_LINES.ordinal] = watchfacePaint(Color.WHITE, style, smTextSize, lineWidth / 3f)
-            palette[i][Brush.BIG_TEXT_AND_LINES.ordinal] = watchfacePaint(Color.WHITE, style, textSize, lineWidth)
-            palette[i][Brush.BIG_SHADOW.ordinal] = watchfacePaint(Color.BLACK, style, textSize, lineWidth / 2f)
-            palette[i][Brush.BLACK_FILL.ordinal] = watchfacePaint(Color.BLACK, style, textSize, lineWidth)
-            palette[i][Brush.LOWBIT_CALENDAR_FILL.ordinal] = watchfacePaint(Color.WHITE, style, textSize, lineWidth)
-            palette[i][Brush.MONTHBOX_SHADOW.ordinal] = watchfacePaint(Color.BLACK, style, smTextSize, lineWidth / 4f)
-
-            // shadows are stroke, not fill, so we fix that here
-            palette[i][Brush.HAND_SHADOW.ordinal]?.style = Paint.Style.STROKE
-            palette[i][Brush.TICK_SHADOW.ordinal]?.style = Paint.Style.STROKE
-            palette[i][Brush.ARC_SHADOW.ordinal]?.style = Paint.Style.STROKE
-            palette[i][Brush.MONTHBOX_SHADOW.ordinal]?.style = Paint.Style.STROKE
-            palette[i][Brush.BIG_SHADOW.ordinal]?.style = Paint.Style.STROKE
-
-            // by default, text is centered, but some styles want it on the left
-            // (these are the places where we'll eventually have to do more work for RTL languages)
-            palette[i][Brush.MONTHBOX_TEXT.ordinal]?.textAlign = Paint.Align.LEFT
-            palette[i][Brush.MONTHBOX_SHADOW.ordinal]?.textAlign = Paint.Align.LEFT
-        }
+    /**
+     * Create all the Paint instances used in the watch face for one style. We only do this the
+     * first time somebody asks for a Paint in that style, so a watch that's never seen ambient
+     * mode doesn't pay for the ambient palettes, and startup only has to build the NORMAL one.
+     */
+    private fun buildPalette(style: Style): Array<Paint?> {
+        Log.v(TAG, "buildPalette: $style, $radius")
+
+        val palette = arrayOfNulls<Paint>(Brush.MAX.ordinal)
+
+        // Quoth the Google: "You can use color elements for up to 5 percent of total pixels."
+        // http://developer.android.com/design/wear/watchfaces.html
+        palette[Brush.BATTERY_LOW.ordinal] = watchfacePaint(Color.YELLOW, style, smTextSize, lineWidth / 3f, true)
+        palette[Brush.BATTERY_CRITICAL.ordinal] = watchfacePaint(Color.RED, style, smTextSize, lineWidth / 3f, true)
+
+        palette[Brush.SECOND_HAND.ordinal] = watchfacePaint(Color.RED, style, smTextSize, lineWidth / 3f)
+        palette[Brush.HAND_SHADOW.ordinal] = watchfacePaint(Color.BLACK, style, smTextSize, lineWidth / 8f)
+        palette[Brush.TICK_SHADOW.ordinal] = watchfacePaint(Color.BLACK, style, smTextSize, lineWidth / 8f)
+        palette[Brush.MINUTE_HAND.ordinal] = watchfacePaint(Color.WHITE, style, textSize, lineWidth)
+        palette[Brush.HOUR_HAND.ordinal] = watchfacePaint(Color.WHITE, style, textSize, lineWidth * 1.5f)
+        palette[Brush.ARC_SHADOW.ordinal] = watchfacePaint(Color.BLACK, style, smTextSize, lineWidth / 6f)
+        palette[Brush.MONTHBOX_TEXT.ordinal] = watchfacePaint(Color.WHITE, style, smTextSize, lineWidth / 3f)
+        palette[Brush.SMALL_LINES.ordinal] = watchfacePaint(Color.WHITE, style, smTextSize, lineWidth / 3f)
+        palette[Brush.BIG_TEXT_AND_LINES.ordinal] = watchfacePaint(Color.WHITE, style, textSize, lineWidth)
+        palette[Brush.BIG_SHADOW.ordinal] = watchfacePaint(Color.BLACK, style, textSize, lineWidth / 2f)
+        palette[Brush.BLACK_FILL.ordinal] = watchfacePaint(Color.BLACK, style, textSize, lineWidth)
+        palette[Brush.LOWBIT_CALENDAR_FILL.ordinal] = watchfacePaint(Color.WHITE, style, textSize, lineWidth)
+        palette[Brush.MONTHBOX_SHADOW.ordinal] = watchfacePaint(Color.BLACK, style, smTextSize, lineWidth / 4f)
+
+        // shadows are stroke, not fill, so we fix that here
+        palette[Brush.HAND_SHADOW.ordinal]?.style = Paint.Style.STROKE
+        palette[Brush.TICK_SHADOW.ordinal]?.style = Paint.Style.STROKE
+        palette[Brush.ARC_SHADOW.ordinal]?.style = Paint.Style.STROKE
+        palette[Brush.MONTHBOX_SHADOW.ordinal]?.style = Paint.Style.STROKE
+        palette[Brush.BIG_SHADOW.ordinal]?.style = Paint.Style.STROKE
+
+        // by default, text is centered, but some styles want it on the left
+        // (these are the places where we'll eventually have to do more work for RTL languages)
+        palette[Brush.MONTHBOX_TEXT.ordinal]?.textAlign = Paint.Align.LEFT
+        palette[Brush.MONTHBOX_SHADOW.ordinal]?.textAlign = Paint.Align.LEFT
 
         // In anti-burnin mode: we'll be drawing some "shadows" as white outlines around
         // black centers, "hollowing out" the hands as we're supposed to do.
-        for (style in listOf(Style.AMBIENT, Style.AMBIENT_ANTI_BURNIN, Style.LOWBIT_ANTI_BURNIN)) {
-            val i = style.ordinal
+        if (style == Style.AMBIENT || style == Style.AMBIENT_ANTI_BURNIN || style == Style.LOWBIT_ANTI_BURNIN) {
+            palette[Brush.HAND_SHADOW.ordinal]?.color = Color.WHITE
+            palette[Brush.HAND_SHADOW.ordinal]?.strokeWidth = lineWidth / 6f
 
-            palette[i][Brush.HAND_SHADOW.ordinal]?.color = Color.WHITE
-            palette[i][Brush.HAND_SHADOW.ordinal]?.strokeWidth = lineWidth / 6f
+            palette[Brush.MINUTE_HAND.ordinal]?.color = Color.BLACK
+            palette[Brush.MINUTE_HAND.ordinal]?.style = Paint.Style.STROKE
 
-            palette[i][Brush.MINUTE_HAND.ordinal]?.color = Color.BLACK
-            palette[i][Brush.MINUTE_HAND.ordinal]?.style = Paint.Style.STROKE
+            palette[Brush.HOUR_HAND.ordinal]?.color = Color.BLACK
+            palette[Brush.HOUR_HAND.ordinal]?.style = Paint.Style.STROKE
 
-            palette[i][Brush.HOUR_HAND.ordinal]?.color = Color.BLACK
-            palette[i][Brush.HOUR_HAND.ordinal]?.style = Paint.Style.STROKE
+            palette[Brush.ARC_SHADOW.ordinal]?.color = Color.WHITE
+//            palette[Brush.MONTHBOX_SHADOW.ordinal]?.color = Color.WHITE
+            palette[Brush.BIG_SHADOW.ordinal]?.color = Color.WHITE
 
-            palette[i][Brush.ARC_SHADOW.ordinal]?.color = Color.WHITE
-//            palette[i][Brush.MONTHBOX_SHADOW.ordinal]?.color = Color.WHITE
-            palette[i][Brush.BIG_SHADOW.ordinal]?.color = Color.WHITE
-
-//            palette[i][Brush.MONTHBOX_TEXT.ordinal]?.color = Color.BLACK
-            palette[i][Brush.BIG_TEXT_AND_LINES.ordinal]?.color = Color.BLACK
-            palette[i][Brush.BIG_SHADOW.ordinal]?.color = Color.WHITE
+//            palette[Brush.MONTHBOX_TEXT.ordinal]?.color = Color.BLACK
+            palette[Brush.BIG_TEXT_AND_LINES.ordinal]?.color = Color.BLACK
+            palette[Brush.BIG_SHADOW.ordinal]?.color = Color.WHITE
         }
+
+        return palette
     }
 
     /**
      * This will return a Paint of a given style and brushId, where those are the constants
      * defined in this file. Anything else will cause an exception.
      */
-    operator fun get(style: Style, brushId: Brush): Paint =
-        requireNotNull(palette[style.ordinal][brushId.ordinal]) {
+    operator fun get(style: Style, brushId: Brush): Paint {
+        val palette = palettes[style.ordinal] ?: buildPalette(style).also { palettes[style.ordinal] = it }
+        return requireNotNull(palette[brushId.ordinal]) {
             "undefined paintcan color, style($style), brushId($brushId)"
         }
+    }
 
     companion object {
         private fun colorFunc(argb: Int) = Paint(Paint.ANTI_ALIAS_FLAG).apply {
@@ -139,6 +141,15 @@ class PaintCan(private val radius: Float) {
 
         private val colorFuncMemo = ::colorFunc.memoize()
 
+        private val forRadiusMemo = { radius: Float -> PaintCan(radius) }.memoize()
+
+        /**
+         * Gets the PaintCan for a watchface of the given radius. Every [ClockFace] of the same size,
+         * including the one in the configuration preview, shares the same PaintCan, so we only build
+         * the palette once. There are only ever one or two sizes in play, so the memo stays small.
+         */
+        fun forRadius(radius: Float): PaintCan = forRadiusMemo(radius)
+
         /**
          * This gets a Paint of a given color. If the same color is requested more than once,
          * the Paint will only be created once and is internally cached. We use this for the
@@ -0,0 +1,221 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+package org.dwallach.calwatch2
+
+import android.content.Context
+import android.os.SystemClock
+import android.util.Log
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
+
+private val TAG = "PerfTrace"
+
+/**
+ * All of our performance numbers used to go to logcat, which forgets them long before anybody
+ * wonders why their battery died overnight. Here, we keep a fixed-size ring buffer of small binary
+ * records (frames, phase percentiles, calendar fetches and layouts, solver pivots, cache misses,
+ * ambient transitions, battery level, startup phases) and every so often append what's new to a
+ * file in the app's private storage. The analyzer in tools/perftrace turns those files into summaries.
+ *
+ * Recording is cheap: a lock and a few array stores. Once every [FLUSH_THRESHOLD] records, it
+ * also schedules a flush, which costs one small task object; everything else, copying the records
+ * out of the ring, encoding them, and the file I/O, happens later, on the [CalendarDispatcher] thread.
+ *
+ * File format: a sequence of chunks, all big-endian. Each chunk has a header -- magic (int),
+ * version (int), wall-clock millis at flush (long), elapsedRealtimeNanos at flush (long),
+ * records dropped since the last flush (int), record count (int) -- followed by the records:
+ * elapsedRealtimeNanos (long), event code (short), aux (short), value (long). The two clocks in the
+ * header let the analyzer put wall-clock times on the records. The codes in [Event] must never
+ * be renumbered; the analyzer has its own copy of them.
+ */
+object PerfTrace {
+    enum class Event(val code: Short) {
+        /** value: nanoseconds in drawEverything() */
+        FRAME(1),
+
+        /** aux: [TimeWrapper.Phase] ordinal, value: nanoseconds (recorded once per frame report) */
+        PHASE_P50(2),
+        PHASE_P99(3),
+        PHASE_MAX(4),
+
+        /** value: nanoseconds to read the calendar provider */
+        FETCH(5),
+
+        /** aux: number of events, value: nanoseconds of layout */
+        LAYOUT(6),
+
+        /** aux: number of events, value: number of pivots in the Cassowary solver */
+        SOLVER_PIVOTS(7),
+
+        /** aux: [LayerCompositor.Layer] ordinal, value: unused */
+        CACHE_MISS(8),
+
+        /** aux: [LayerCompositor.Layer] ordinal, value: blits (i.e., cache hits) so far */
+        CACHE_HITS(9),
+
+        /** value: 1 for entering ambient mode, 0 for leaving it */
+        AMBIENT(10),
+
+        /** aux: 1 if charging, value: battery level, in tenths of a percent */
+        BATTERY(11),
+
+        /** aux: [StartupTrace.Phase] ordinal, value: nanoseconds (recorded once per engine start) */
+        STARTUP_PHASE(12),
+
+        /** value: nanoseconds from the engine's onCreate() to the end of the first frame */
+        FIRST_FRAME(13)
+    }
+
+    private const val MAGIC = 0x43575054 // "CWPT"
+    private const val VERSION = 1
+    private const val HEADER_BYTES = 4 + 4 + 8 + 8 + 4 + 4
+    private const val RECORD_BYTES = 8 + 2 + 2 + 8
+
+    private const val CAPACITY = 4096
+    private const val FLUSH_THRESHOLD = CAPACITY * 3 / 4
+
+    private const val FILENAME = "perf-trace.bin"
+    private const val OLD_FILENAME = "perf-trace.old.bin"
+    private const val MAX_FILE_BYTES = 512 * 1024
+
+    private val lock = Any()
+    private val times = LongArray(CAPACITY)
+    private val codes = ShortArray(CAPACITY)
+    private val auxes = ShortArray(CAPACITY)
+    private val values = LongArray(CAPACITY)
+
+    private var written: Long = 0 // total records ever written to the ring
+    private var flushed: Long = 0 // total records handed off to the file
+    private var dropped: Int = 0 // overwritten before they could be flushed
+
+    // Where a flush copies the records, so it holds the lock only for a few arraycopy() calls. These are
+    // only ever touched on the CalendarDispatcher thread, which runs one flush at a time.
+    private val flushTimes = LongArray(CAPACITY)
+    private val flushCodes = ShortArray(CAPACITY)
+    private val flushAuxes = ShortArray(CAPACITY)
+    private val flushValues = LongArray(CAPACITY)
+
+    // set from the time a flush is scheduled until it takes its copy, so we don't queue up a pile of them
+    private val flushPending = AtomicBoolean(false)
+
+    @Volatile
+    private var traceDir: File? = null
+
+    private val scope = CoroutineScope(SupervisorJob() + CalendarDispatcher.dispatcher)
+
+    /** Call this once, at startup. Until then, records pile up in the ring but never reach a file. */
+    fun init(context: Context) {
+        traceDir = context.filesDir
+    }
+
+    fun record(event: Event, value: Long, aux: Int = 0) {
+        val needsFlush: Boolean
+
+        synchronized(lock) {
+            val i = (written % CAPACITY).toInt()
+            times[i] = SystemClock.elapsedRealtimeNanos()
+            codes[i] = event.code
+            auxes[i] = aux.coerceIn(Short.MIN_VALUE.toInt(), Short.MAX_VALUE.toInt()).toShort()
+            values[i] = value
+            written++
+
+            if (written - flushed > CAPACITY) {
+                // the oldest unflushed record just got overwritten
+                flushed++
+                dropped++
+            }
+            needsFlush = written - flushed == FLUSH_THRESHOLD.toLong()
+        }
+
+        if (needsFlush) flush()
+    }
+
+    /**
+     * Appends everything recorded since the last flush to the trace file. All the work happens in the
+     * background, so this is safe to call from any thread, as often as you like, including on the
+     * UI thread in the middle of a frame. If a flush is already on its way, this one is absorbed into it.
+     */
+    fun flush() {
+        val dir = traceDir ?: return
+        if (flushPending.compareAndSet(false, true))
+            scope.launch { writeChunk(dir) }
+    }
+
+    /** Runs on the [CalendarDispatcher] thread: copies out the unflushed records, then encodes and writes them. */
+    private fun writeChunk(dir: File) {
+        val count: Int
+        val droppedBefore: Int
+
+        synchronized(lock) {
+            // anything recorded from here on needs a flush of its own
+            flushPending.set(false)
+
+            count = (written - flushed).toInt()
+            if (count == 0) return
+
+            // The unflushed records might wrap around the end of the ring, so that's at most two pieces.
+            val start = (flushed % CAPACITY).toInt()
+            val firstPart = minOf(count, CAPACITY - start)
+            copyOut(start, 0, firstPart)
+            copyOut(0, firstPart, count - firstPart)
+
+            droppedBefore = dropped
+            flushed = written
+            dropped = 0
+        }
+
+        val buffer = ByteBuffer.allocate(HEADER_BYTES + count * RECORD_BYTES)
+        buffer.putInt(MAGIC)
+        buffer.putInt(VERSION)
+        buffer.putLong(System.currentTimeMillis())
+        buffer.putLong(SystemClock.elapsedRealtimeNanos())
+        buffer.putInt(droppedBefore)
+        buffer.putInt(count)
+
+        for (i in 0 until count) {
+            buffer.putLong(flushTimes[i])
+            buffer.putShort(flushCodes[i])
+            buffer.putShort(flushAuxes[i])
+            buffer.putLong(flushValues[i])
+        }
+
+        append(dir, buffer.array())
+    }
+
+    private fun copyOut(from: Int, to: Int, length: Int) {
+        if (length == 0) return
+        System.arraycopy(times, from, flushTimes, to, length)
+        System.arraycopy(codes, from, flushCodes, to, length)
+        System.arraycopy(auxes, from, flushAuxes, to, length)
+        System.arraycopy(values, from, flushValues, to, length)
+    }
+
+    private fun append(dir: File, bytes: ByteArray) {
+        val file = File(dir, FILENAME)
+
+        try {
+            // keep at most two files' worth, so this can't eat the watch's storage
+            if (file.length() + bytes.size > MAX_FILE_BYTES) {
+                val oldFile = File(dir, OLD_FILENAME)
+                oldFile.delete()
+                if (!file.renameTo(oldFile)) Log.w(TAG, "append: rotation failed")
+            }
+
+            FileOutputStream(file, true).use { it.write(bytes) }
+            Log.v(TAG, "append: ${(bytes.size - HEADER_BYTES) / RECORD_BYTES} records")
+        } catch (e: IOException) {
+            Log.w(TAG, "append: failed to write trace", e)
+        }
+    }
+}
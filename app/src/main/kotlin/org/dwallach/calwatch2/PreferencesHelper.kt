@@ -50,7 +50,7 @@ object PreferencesHelper {
             ClockState.showSeconds = showSeconds
             ClockState.showDayDate = showDayDate
 
-            Utilities.redrawEverything()
+            Utilities.redrawEverything(Invalidation.STYLE)
 
             return version
 
@@ -0,0 +1,221 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+package org.dwallach.calwatch2
+
+import android.util.Log
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.coroutines.cancellation.CancellationException
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+
+private val TAG = "RescanScheduler"
+
+/**
+ * Coalesces requests to rescan the calendar. The old approach, a volatile "scan in progress" boolean,
+ * had two problems: the check-then-set was racy, and any request that arrived mid-scan was simply
+ * dropped, so a calendar change that landed while we were busy wouldn't show up until the top
+ * of the next hour.
+ *
+ * Here, we've got a tiny state machine, advanced only with compare-and-set:
+ *
+ * * IDLE: nothing going on. A request moves us to DEBOUNCING and launches the runner.
+ * * DEBOUNCING: the runner is waiting out [debounceMillis] so a storm of broadcasts (we register
+ *   two receivers, and the provider likes to fire several intents in a row) becomes one scan.
+ *   Further requests are absorbed, since the scan hasn't started yet.
+ * * SCANNING: the scan is running. A request moves us to SCANNING_DIRTY.
+ * * SCANNING_DIRTY: the scan is running, but it's stale. When it finishes, the runner goes back
+ *   to DEBOUNCING and does exactly one trailing scan, no matter how many requests piled up.
+ *
+ * If [cancelSuperseded] is set, a scan that goes dirty is cancelled rather than allowed to finish,
+ * since its results are about to be replaced anyway. The scan function needs to cooperate
+ * with cancellation (i.e., not publish anything after it's been cancelled) for that to help.
+ * It's off by default, since not every scan function cooperates; [CalendarFetcher]'s does, and
+ * turns it on. A steady drizzle of broadcasts could then keep us from ever finishing a scan, so
+ * after [MAX_CONSECUTIVE_CANCELS] cancellations in a row, we let the next scan run to completion,
+ * and the watch face eventually sees *something* new.
+ *
+ * A scan that throws is logged and treated as finished; either way, the runner always moves the
+ * state machine out of SCANNING when it's done, so one bad scan can't wedge us forever.
+ *
+ * All the work happens in a scope owned by this scheduler, rather than GlobalScope, so [close]
+ * reliably shuts everything down. By default, that scope runs on the [CalendarDispatcher].
+ */
+class RescanScheduler(
+    private val debounceMillis: Long,
+    private val cancelSuperseded: Boolean = false,
+    dispatcher: CoroutineDispatcher = CalendarDispatcher.dispatcher,
+    private val scan: suspend CoroutineScope.() -> Unit
+) {
+    private enum class State { IDLE, DEBOUNCING, SCANNING, SCANNING_DIRTY, CLOSED }
+
+    private val state = AtomicReference(State.IDLE)
+    private val scope = CoroutineScope(SupervisorJob() + dispatcher)
+
+    @Volatile
+    private var scanJob: Job? = null
+
+    // counters, for logging and for understanding how noisy the broadcasts really are
+    private val requestCounter = AtomicInteger(0)
+    private val scanCounter = AtomicInteger(0)
+    private val cancelCounter = AtomicInteger(0)
+    private val failureCounter = AtomicInteger(0)
+
+    // cancellations since the last scan that ran to completion
+    private val consecutiveCancels = AtomicInteger(0)
+
+    /** Number of requests that were absorbed into a scan that was already pending or running. */
+    val coalescedRequests: Int
+        get() = requestCounter.get() - scanCounter.get()
+
+    /** Number of scans that were cancelled because a newer request superseded them. */
+    val cancelledScans: Int
+        get() = cancelCounter.get()
+
+    /** Number of scans that ended by throwing an exception. */
+    val failedScans: Int
+        get() = failureCounter.get()
+
+    /**
+     * Ask for a rescan. Returns immediately. If [immediate] is true and nothing else is
+     * going on, we skip the debounce window; that's what you want for the very first scan.
+     */
+    fun request(immediate: Boolean = false) {
+        requestCounter.incrementAndGet()
+
+        while (true) {
+            when (state.get()) {
+                State.IDLE ->
+                    if (state.compareAndSet(State.IDLE, State.DEBOUNCING)) {
+                        runner(if (immediate) 0 else debounceMillis)
+                        return
+                    }
+
+                State.SCANNING ->
+                    if (state.compareAndSet(State.SCANNING, State.SCANNING_DIRTY)) {
+                        if (cancelSuperseded) {
+                            if (consecutiveCancels.get() < MAX_CONSECUTIVE_CANCELS) {
+                                Log.i(TAG, "request: cancelling superseded scan")
+                                scanJob?.cancel()
+                            } else {
+                                Log.i(TAG, "request: too many cancelled scans in a row, letting this one finish")
+                            }
+                        }
+                        return
+                    }
+
+                State.DEBOUNCING, State.SCANNING_DIRTY -> return // a scan is already coming; nothing to do
+
+                State.CLOSED -> {
+                    Log.w(TAG, "request: scheduler is closed, ignoring")
+                    return
+                }
+            }
+        }
+    }
+
+    private fun runner(initialDelay: Long) = scope.launch {
+        var waitMillis = initialDelay
+        var finished = false
+
+        try {
+            while (true) {
+                if (waitMillis > 0) delay(waitMillis)
+
+                // Publish the job before we move to SCANNING, so any request() that sees SCANNING also
+                // sees the job it might want to cancel. (Cancelling it before it starts works fine.)
+                val job = launch(start = CoroutineStart.LAZY) { runScan() }
+                scanJob = job
+
+                // Only the runner ever moves us out of DEBOUNCING, so this can only fail if we were closed.
+                if (!state.compareAndSet(State.DEBOUNCING, State.SCANNING)) {
+                    job.cancel()
+                    scanJob = null
+                    finished = true
+                    return@launch
+                }
+
+                scanCounter.incrementAndGet()
+                job.start()
+                job.join()
+
+                // A request() between here and the state change below finds nothing to cancel, which is
+                // fine: the scan is already over, and the request still leaves us dirty for a trailing scan.
+                scanJob = null
+
+                if (job.isCancelled) {
+                    cancelCounter.incrementAndGet()
+                    consecutiveCancels.incrementAndGet()
+                } else {
+                    consecutiveCancels.set(0)
+                }
+
+                // If nobody asked for anything while we were scanning, we're done. Otherwise, somebody
+                // dirtied us, and we go around again for the trailing scan.
+                if (state.compareAndSet(State.SCANNING, State.IDLE) ||
+                    !state.compareAndSet(State.SCANNING_DIRTY, State.DEBOUNCING) // closed
+                ) {
+                    finished = true
+                    return@launch
+                }
+
+                Log.i(TAG, "runner: trailing rescan (requests: ${requestCounter.get()}, scans: ${scanCounter.get()}, cancelled: ${cancelCounter.get()})")
+                waitMillis = debounceMillis
+            }
+        } finally {
+            if (!finished) {
+                // We got here by way of an exception or our own cancellation, while we still owned the
+                // state machine. Hand it back, so the next request starts a fresh runner. (If we were
+                // closed, the state is CLOSED, and we leave it that way.)
+                scanJob = null
+                val abandoned = state.get()
+                if (abandoned != State.CLOSED && abandoned != State.IDLE && state.compareAndSet(abandoned, State.IDLE))
+                    Log.w(TAG, "runner: exited abnormally, resetting from $abandoned")
+            }
+        }
+    }
+
+    /**
+     * Runs one scan. Cancellation propagates as usual, but anything else the scan throws stops here:
+     * left alone, it would cancel the runner along with it.
+     */
+    private suspend fun CoroutineScope.runScan() {
+        try {
+            scan()
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            failureCounter.incrementAndGet()
+            Log.e(TAG, "runScan: scan failed", e)
+        }
+    }
+
+    /**
+     * Shut everything down, cancelling any scan in progress. Once closed, the scheduler
+     * ignores all future requests.
+     */
+    fun close() {
+        Log.i(TAG, "close: requests(${requestCounter.get()}), scans(${scanCounter.get()}), cancelled(${cancelCounter.get()}), failed(${failureCounter.get()})")
+        state.set(State.CLOSED)
+        scope.cancel()
+    }
+
+    override fun toString() =
+        "RescanScheduler(state(${state.get()}), requests(${requestCounter.get()}), scans(${scanCounter.get()}), cancelled(${cancelCounter.get()}), failed(${failureCounter.get()}))"
+
+    companion object {
+        /** When [cancelSuperseded] is set, the most scans we'll cancel in a row before letting one finish. */
+        const val MAX_CONSECUTIVE_CANCELS = 3
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+package org.dwallach.calwatch2
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Color
+import android.util.Log
+import org.dwallach.calwatch2.LayerCompositor.Companion.mix
+import org.dwallach.calwatch2.LayerCompositor.Layer
+
+private val TAG = "SharedLayerCache"
+
+/**
+ * The face and the month box don't depend on anything specific to a given [ClockFace] instance,
+ * only on the size, the drawing style, the face mode, and so forth, all of which go into the key.
+ * So rather than having the watchface engine and the configuration preview each render and hold
+ * their own copies, every ClockFace in the process draws those layers through here, and
+ * if the sizes match, the preview gets the engine's bitmaps for free (and vice versa).
+ *
+ * Since the key covers everything the layer depends on, entries never need to be invalidated; a
+ * change just means a different key. We keep the [CAPACITY] most recently used bitmaps, which
+ * is enough for the face in every drawing style plus the month box and a preview or two.
+ *
+ * Like the rest of the drawing code, this is only meant to be used from the UI thread.
+ */
+object SharedLayerCache {
+    private const val CAPACITY = 8
+
+    private class Entry(val bitmap: Bitmap) {
+        val canvas = Canvas(bitmap)
+        var layer = Layer.FACE
+        var key: Long = 0
+        var valid = false
+        var lastUsed: Long = 0
+    }
+
+    private val entries = ArrayList<Entry>(CAPACITY)
+    private var useCounter: Long = 0
+
+    private val renders = IntArray(Layer.values().size)
+    private val blits = IntArray(Layer.values().size)
+    private var evictions = 0
+
+    /**
+     * Draws the given layer onto the canvas from a shared bitmap of the given size, calling [render]
+     * to produce the bitmap if nobody has drawn this layer, with this key and size, recently.
+     */
+    fun draw(canvas: Canvas, layer: Layer, width: Int, height: Int, key: Long, render: (Canvas) -> Unit) {
+        if (width <= 0 || height <= 0) {
+            // we don't know how big we are yet, so no caching
+            render(canvas)
+            return
+        }
+
+        val fullKey = mix(key, layer.ordinal)
+        useCounter++
+
+        var entry: Entry? = null
+        for (i in entries.indices) {
+            val e = entries[i]
+            if (e.valid && e.key == fullKey && e.layer == layer && e.bitmap.width == width && e.bitmap.height == height) {
+                entry = e
+                break
+            }
+        }
+
+        if (entry == null) {
+            entry = victim(width, height)
+            entry.bitmap.eraseColor(Color.TRANSPARENT)
+            render(entry.canvas)
+            entry.layer = layer
+            entry.key = fullKey
+            entry.valid = true
+            renders[layer.ordinal]++
+            PerfTrace.record(PerfTrace.Event.CACHE_MISS, 0, layer.ordinal)
+        } else {
+            blits[layer.ordinal]++
+        }
+
+        entry.lastUsed = useCounter
+        canvas.drawBitmap(entry.bitmap, 0f, 0f, null)
+    }
+
+    /** Finds an entry we can render into: a fresh one if there's room, otherwise the least recently used. */
+    private fun victim(width: Int, height: Int): Entry {
+        if (entries.size < CAPACITY) {
+            return Entry(Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)).also { entries += it }
+        }
+
+        var lru = 0
+        for (i in entries.indices) {
+            if (entries[i].lastUsed < entries[lru].lastUsed) lru = i
+        }
+
+        evictions++
+        val old = entries[lru]
+        if (old.bitmap.width == width && old.bitmap.height == height) {
+            old.valid = false
+            return old
+        }
+
+        old.bitmap.recycle()
+        return Entry(Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)).also { entries[lru] = it }
+    }
+
+    /** Throws away all the bitmaps, e.g., if we're short on memory. */
+    fun clear() {
+        Log.i(TAG, "clear")
+        entries.forEach { it.bitmap.recycle() }
+        entries.clear()
+    }
+
+    /** Logs how often the shared layers were actually re-rendered versus simply blitted. */
+    fun report() {
+        Log.i(TAG, "shared layers: entries(${entries.size}), evictions($evictions)")
+        Layer.values().forEach {
+            if (renders[it.ordinal] == 0 && blits[it.ordinal] == 0) return@forEach
+            Log.i(TAG, "shared layer $it: renders(${renders[it.ordinal]}), blits(${blits[it.ordinal]})")
+            PerfTrace.record(PerfTrace.Event.CACHE_HITS, blits[it.ordinal].toLong(), it.ordinal)
+        }
+    }
+}
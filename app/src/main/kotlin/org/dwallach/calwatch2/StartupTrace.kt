@@ -0,0 +1,95 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+package org.dwallach.calwatch2
+
+import android.os.SystemClock
+import android.util.Log
+
+private val TAG = "StartupTrace"
+
+/**
+ * Where the time goes between the engine's onCreate() and the first frame on the screen, and in the
+ * startup work we push off until after that frame. Each [Phase] is timed once per engine start.
+ * When the deferred work is done, [report] logs everything and sends it to the [PerfTrace].
+ *
+ * Like the rest of the engine lifecycle, this is only meant to be used from the UI thread.
+ */
+object StartupTrace {
+    /**
+     * The phases of startup, in the order they happen. Everything up to [FIRST_FRAME] is on the
+     * critical path; everything after it is deferred until the first frame has been drawn.
+     * The analyzer in tools/perftrace has a copy of these names, so don't reorder them. That's
+     * why [SNAPSHOT], which happens just before the first frame, is at the end.
+     */
+    enum class Phase {
+        SUPER_ON_CREATE,
+        PREFERENCES,
+        WATCH_FACE_STYLE,
+        CLOCK_FACE,
+        COMPLICATIONS,
+        FIRST_FRAME,
+        VERSION,
+        BATTERY,
+        CALENDAR,
+        TIME_SERVICE,
+        SNAPSHOT
+    }
+
+    private val phaseNanos = LongArray(Phase.values().size)
+    private var createNanos: Long = 0
+    private var firstFrameNanos: Long = 0
+
+    /** True once [firstFrame] has been called since the last [begin]. */
+    val firstFrameDrawn: Boolean
+        get() = firstFrameNanos > 0
+
+    /** Call this at the very top of onCreate(). */
+    fun begin() {
+        createNanos = SystemClock.elapsedRealtimeNanos()
+        firstFrameNanos = 0
+        phaseNanos.fill(0)
+    }
+
+    /** Runs the block and charges the time it took to the given phase. */
+    inline fun <T> measure(phase: Phase, block: () -> T): T {
+        val start = SystemClock.elapsedRealtimeNanos()
+        try {
+            return block()
+        } finally {
+            record(phase, SystemClock.elapsedRealtimeNanos() - start)
+        }
+    }
+
+    fun record(phase: Phase, nanos: Long) {
+        phaseNanos[phase.ordinal] += nanos
+    }
+
+    /**
+     * Call this at the end of the first onDraw(), with the [TimeWrapper.phaseStart] value from its
+     * beginning. Only the first call after [begin] counts.
+     */
+    fun firstFrame(onDrawStart: Long) {
+        if (firstFrameDrawn) return
+
+        val now = SystemClock.elapsedRealtimeNanos()
+        record(Phase.FIRST_FRAME, now - onDrawStart)
+        firstFrameNanos = now - createNanos
+
+        Log.i(TAG, "time to first frame: %.3f ms".format(firstFrameNanos / 1000000f))
+        PerfTrace.record(PerfTrace.Event.FIRST_FRAME, firstFrameNanos)
+    }
+
+    /** Logs every phase and records it in the [PerfTrace]. Call this once the deferred work is done. */
+    fun report() {
+        Phase.values().forEach {
+            val nanos = phaseNanos[it.ordinal]
+            Log.i(TAG, "startup phase %s: %.3f ms".format(it, nanos / 1000000f))
+            PerfTrace.record(PerfTrace.Event.STARTUP_PHASE, nanos, it.ordinal)
+        }
+    }
+}
@@ -9,7 +9,10 @@ package org.dwallach.calwatch2
 
 import android.annotation.SuppressLint
 import android.content.Context
+import android.graphics.Bitmap
 import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.drawable.Drawable
 import android.util.AttributeSet
 import android.util.Log
 import android.view.MotionEvent
@@ -37,6 +40,12 @@ class StylePickerView(context: Context, attrs: AttributeSet) : View(context, att
 
     private val allDrawables = listOf(toolSelected, liteSelected, numbersSelected)
 
+    // Indexed by face mode. Each one is a full-screen bitmap, and the picker is rarely open, so
+    // these belong to this view alone, and go away with it; see onDetachedFromWindow().
+    private val thumbnails = arrayOfNulls<Bitmap>(maxOf(FACE_TOOL, FACE_LITE, FACE_NUMBERS) + 1)
+    private var thumbnailWidth = -1
+    private var thumbnailHeight = -1
+
     override fun onVisibilityChanged(changedView: View, visibility: Int) {
         super.onVisibilityChanged(changedView, visibility)
         invalidate()
@@ -66,11 +75,50 @@ class StylePickerView(context: Context, attrs: AttributeSet) : View(context, att
 
         Log.i(TAG, "onDraw: $w, $h: ${ClockState.faceMode}")
 
-        when (ClockState.faceMode) {
-            FACE_NUMBERS -> numbersSelected?.draw(canvas)
-            FACE_LITE -> liteSelected?.draw(canvas)
-            FACE_TOOL -> toolSelected?.draw(canvas)
-            else -> Log.w(TAG, "onDraw: Unexpected faceMode: ${ClockState.faceMode}")
+        val thumbnail = when (ClockState.faceMode) {
+            FACE_NUMBERS -> thumbnail(FACE_NUMBERS, numbersSelected)
+            FACE_LITE -> thumbnail(FACE_LITE, liteSelected)
+            FACE_TOOL -> thumbnail(FACE_TOOL, toolSelected)
+            else -> {
+                Log.w(TAG, "onDraw: Unexpected faceMode: ${ClockState.faceMode}")
+                null
+            }
+        }
+
+        thumbnail?.let { canvas.drawBitmap(it, 0f, 0f, null) }
+    }
+
+    override fun onDetachedFromWindow() {
+        super.onDetachedFromWindow()
+        releaseThumbnails()
+    }
+
+    private fun releaseThumbnails() {
+        thumbnails.forEach { it?.recycle() }
+        thumbnails.fill(null)
+    }
+
+    /**
+     * The vector drawables for each face mode are rasterized once per size, rather than on every
+     * onDraw, and kept around while the picker is on the screen.
+     */
+    private fun thumbnail(faceMode: Int, drawable: Drawable?): Bitmap? {
+        if (drawable == null) return null
+
+        // we're hidden, or haven't been laid out yet, and createBitmap() won't take a zero (or -1) size
+        if (w <= 0 || h <= 0) return null
+
+        if (thumbnailWidth != w || thumbnailHeight != h) {
+            releaseThumbnails()
+            thumbnailWidth = w
+            thumbnailHeight = h
+        }
+
+        return thumbnails[faceMode] ?: Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888).also {
+            Log.i(TAG, "thumbnail: rendering face mode $faceMode at $w x $h")
+            it.eraseColor(Color.TRANSPARENT)
+            drawable.draw(Canvas(it))
+            thumbnails[faceMode] = it
         }
     }
 
@@ -101,7 +149,7 @@ class StylePickerView(context: Context, attrs: AttributeSet) : View(context, att
                 Log.i(TAG, "Theta: %.2f --> new face mode ${ClockState.faceMode}".format(theta))
 
                 PreferencesHelper.savePreferences(context)
-                Utilities.redrawEverything()
+                Utilities.redrawEverything(Invalidation.STYLE)
                 invalidate()
             }
             true
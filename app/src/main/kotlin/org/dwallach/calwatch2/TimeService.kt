@@ -0,0 +1,110 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+package org.dwallach.calwatch2
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.os.Handler
+import android.os.Looper
+import android.util.Log
+import java.lang.ref.WeakReference
+
+private val TAG = "TimeService"
+
+/**
+ * We used to check, on every single frame, whether we'd ticked over into a new hour, which meant
+ * a floor() and a TimeZone lookup sixty times a second for something that happens once an hour.
+ * Instead, this schedules one callback for the top of the next hour, and listens for Android's
+ * broadcasts about timezone and clock changes. Either way, we tell [ClockState], which will ask for a
+ * calendar rescan if the local hour actually changed.
+ *
+ * Handler callbacks don't run while the watch is asleep, so [onTimeTick], which Android calls
+ * once a minute even in ambient mode, is the backstop.
+ *
+ * Everything here happens on the UI thread.
+ */
+object TimeService {
+    private val handler = Handler(Looper.getMainLooper())
+    private val hourRunnable = Runnable { hourBoundary() }
+
+    private var contextRef = WeakReference<Context>(null)
+    private var isReceiverRegistered = false
+
+    // land a little after the top of the hour, so we're definitely in the new hour when we get there
+    private const val SLACK_MILLIS = 50L
+
+    private val receiver = object : BroadcastReceiver() {
+        override fun onReceive(context: Context, intent: Intent) {
+            Log.i(TAG, "onReceive: ${intent.action}")
+            TimeWrapper.timeZoneChanged()
+            hourBoundary() // the local hour may well be different now
+            CalWatchFaceService.redraw()
+        }
+    }
+
+    /** Call this when the watchface starts up. */
+    fun start(context: Context) {
+        Log.i(TAG, "start")
+        if (!isReceiverRegistered) {
+            val filter = IntentFilter().apply {
+                addAction(Intent.ACTION_TIMEZONE_CHANGED)
+                addAction(Intent.ACTION_TIME_CHANGED)
+            }
+            context.registerReceiver(receiver, filter)
+            contextRef = WeakReference(context)
+            isReceiverRegistered = true
+        }
+
+        TimeWrapper.update()
+        ClockState.checkHour()
+        scheduleNextHour()
+    }
+
+    /** Call this when the watchface is going away. */
+    fun stop() {
+        Log.i(TAG, "stop")
+        handler.removeCallbacks(hourRunnable)
+
+        if (isReceiverRegistered) {
+            try {
+                contextRef.get()?.unregisterReceiver(receiver)
+            } catch (e: IllegalArgumentException) {
+                Log.e(TAG, "stop: receiver wasn't registered?", e)
+            }
+            isReceiverRegistered = false
+        }
+        contextRef = WeakReference(null)
+    }
+
+    /** Call this from onTimeTick(). Cheap, and only does anything if we somehow missed the hour. */
+    fun onTimeTick() {
+        TimeWrapper.update()
+        if (ClockState.checkHour()) {
+            Log.i(TAG, "onTimeTick: caught an hour boundary the handler missed")
+            scheduleNextHour()
+        }
+    }
+
+    private fun hourBoundary() {
+        TimeWrapper.update()
+        ClockState.checkHour()
+        scheduleNextHour()
+    }
+
+    private fun scheduleNextHour() {
+        // the top of the next local hour, converted back to GMT
+        val nextHourGmt = TimeWrapper.localFloorHour + 1.hours - TimeWrapper.gmtOffset
+        val delay = (nextHourGmt - TimeWrapper.gmtTime).coerceIn(0L, 1.hours) + SLACK_MILLIS
+
+        handler.removeCallbacks(hourRunnable)
+        handler.postDelayed(hourRunnable, delay)
+        Log.v(TAG, "scheduleNextHour: %.1f minutes from now".format(delay / 60000.0))
+    }
+}
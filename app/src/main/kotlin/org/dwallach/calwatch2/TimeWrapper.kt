@@ -10,8 +10,8 @@ package org.dwallach.calwatch2
 import android.os.SystemClock
 import android.text.format.DateUtils
 import android.util.Log
+import androidx.annotation.VisibleForTesting
 import java.util.TimeZone
-import kotlin.math.floor
 
 private val TAG = "TimeWrapper"
 
@@ -32,20 +32,86 @@ object TimeWrapper {
     var gmtTime: Long = 0
         private set
 
-    //   private const val magicOffset: Long = -40 * 60 * 60 * 1000 // 12 hours earlier, for debugging
-    //   private const val magicOffset: Long = 25 * 60 * 1000       // 25 minutes later, for debugging
-    private const val magicOffset: Long = 0 // for production use
+    //   magicOffset = -40 * 60 * 60 * 1000 // 12 hours earlier, for debugging
+    //   magicOffset = 25 * 60 * 1000       // 25 minutes later, for debugging
+    // Zero for production use. The benchmarks set this to put the clock on a specific day; if you
+    // change it, call [timeZoneChanged] so the cached offset gets recomputed for the new time.
+    @VisibleForTesting
+    internal var magicOffset: Long = 0
 
+    /**
+     * The GMT offset, and the span of time over which it's valid. Nothing changes the offset except
+     * for a DST transition (which we find in advance; see [nextOffsetChange]) or the user changing
+     * timezones (see [timeZoneChanged]). This is immutable, and swapped in all at once, since
+     * [update] gets called from the calendar thread as well as the UI thread.
+     */
+    private class ZoneCache(val timeZone: TimeZone, val offset: Int, val validFrom: Long, val validUntil: Long)
+
+    @Volatile
+    private var zoneCache: ZoneCache? = null
+
+    /**
+     * Call this on every frame. In the common case, this is just one read of the clock and a range
+     * check against the cached offset. We used to ask TimeZone for the offset every time.
+     */
     fun update() {
         gmtTime = System.currentTimeMillis() + magicOffset
 
+        val cache = zoneCache
+        gmtOffset = if (cache != null && gmtTime >= cache.validFrom && gmtTime < cache.validUntil)
+            cache.offset
+        else
+            refreshZoneCache(cache?.timeZone, gmtTime).offset
+    }
+
+    private fun refreshZoneCache(timeZone: TimeZone?, now: Long): ZoneCache {
         // TODO: do we want to migrate from java.util.TimeZone to android.icu.util.TimeZone?
-        // - might work better in weird cases
+        // - might work better in weird cases, and has getNextTransition(), so we wouldn't need to search
         // - only supported in Android 7.0 and higher, which would be an issue for Wear 1.0.
         //   (assuming any of them are still around?)
-        val tz = TimeZone.getDefault()
+        val tz = timeZone ?: TimeZone.getDefault()
+
+        val offset = tz.getOffset(now) // includes DST correction
+        val cache = ZoneCache(tz, offset, now, nextOffsetChange(tz, now, offset))
+        zoneCache = cache
 
-        gmtOffset = tz.getOffset(gmtTime) // includes DST correction
+        Log.i(TAG, "timezone ${tz.id}: offset $offset ms, valid for %.1f hours".format((cache.validUntil - now) / 3600000.0))
+        return cache
+    }
+
+    /**
+     * java.util.TimeZone won't tell us when the next DST transition is, so we look for it: a day at
+     * a time until the offset changes, then a binary search down to the millisecond. If there's
+     * no change within [OFFSET_HORIZON], we'll just check again then.
+     */
+    private fun nextOffsetChange(tz: TimeZone, now: Long, offset: Int): Long {
+        var low = now
+        while (low - now < OFFSET_HORIZON) {
+            val high = low + 24.hours
+            if (tz.getOffset(high) != offset) {
+                var lo = low // offset is unchanged here
+                var hi = high // offset has changed here
+                while (hi - lo > 1) {
+                    val mid = lo + (hi - lo) / 2
+                    if (tz.getOffset(mid) == offset) lo = mid else hi = mid
+                }
+                return hi
+            }
+            low = high
+        }
+        return low
+    }
+
+    private const val OFFSET_HORIZON = 7 * 24 * 3600000L // one week
+
+    /**
+     * Call this when Android tells us the timezone has changed (or the clock was set), so we'll go back
+     * to TimeZone for a fresh offset. Android resets the default TimeZone before the broadcast goes out.
+     */
+    fun timeZoneChanged() {
+        Log.i(TAG, "timeZoneChanged")
+        zoneCache = null
+        update()
     }
 
     /**
@@ -56,7 +122,12 @@ object TimeWrapper {
 
     /** If it's currently 12:32pm, this value returned will be 12:00pm. */
     val localFloorHour: Long
-        get() = (floor(localTime / 3600000.0) * 3600000.0).toLong()
+        get() {
+            // integer arithmetic, with a correction for negative times, rather than floor() on a double
+            val t = localTime
+            val remainder = t % 3600000L
+            return if (remainder < 0) t - remainder - 3600000L else t - remainder
+        }
 
     private var localMonthDayCache: String = ""
     private var localDayOfWeekCache: String = ""
@@ -101,14 +172,83 @@ object TimeWrapper {
     private var minRuntime: Long = 0
     private var maxRuntime: Long = 0
     private var avgRuntimeAccumulator: Long = 0
+    private var scheduledFrames = 0
+    private var scheduledDelayAccumulator: Long = 0
+
+    /** Frames per second we actually achieved, as of the most recent report. */
+    var fps: Float = 0f
+        private set
+
+    /** Percentage of the time spent rendering, as of the most recent report. */
+    var wakePercent: Float = 0f
+        private set
+
+    /**
+     * The parts of a frame we measure separately. [FRAME] is all of ClockFace.drawEverything(), and
+     * [ON_DRAW_OVERHEAD] is whatever onDraw() spends outside of it (clearing the screen, etc.).
+     * [AMBIENT_TICK_CPU] is the thread CPU time, rather than the wall-clock time, of each ambient frame.
+     */
+    enum class Phase {
+        CALENDAR,
+        FACE,
+        BATTERY,
+        COMPLICATIONS,
+        HANDS,
+        MONTH_BOX,
+        FRAME,
+        ON_DRAW_OVERHEAD,
+        AMBIENT_TICK_CPU
+    }
+
+    private val phaseHistograms = Array(Phase.values().size) { FrameHistogram() }
+    private var lastFrameRuntime: Long = 0
+
+    /**
+     * For performance monitoring: returns a timestamp to hand to [phaseEnd]. Doesn't allocate, so
+     * it's fine to call several times per frame.
+     */
+    fun phaseStart(): Long = SystemClock.elapsedRealtimeNanos()
+
+    /** For performance monitoring: records how long the given phase took since [phaseStart]. */
+    fun phaseEnd(phase: Phase, startNanos: Long) {
+        phaseHistograms[phase.ordinal].record(SystemClock.elapsedRealtimeNanos() - startNanos)
+    }
+
+    /** For performance monitoring: records a duration that was measured some other way. */
+    fun recordPhase(phase: Phase, nanos: Long) {
+        phaseHistograms[phase.ordinal].record(nanos)
+    }
+
+    /**
+     * For performance monitoring: call this at the end of onDraw(), with the [phaseStart] value from its
+     * beginning. Everything that wasn't inside drawEverything() counts as overhead.
+     */
+    fun onDrawEnd(startNanos: Long) {
+        val onDrawRuntime = SystemClock.elapsedRealtimeNanos() - startNanos
+        phaseHistograms[Phase.ON_DRAW_OVERHEAD.ordinal].record(onDrawRuntime - lastFrameRuntime)
+        lastFrameRuntime = 0
+    }
+
+    /** For performance monitoring: the percentiles for one phase, since the last reset. */
+    fun phaseSnapshot(phase: Phase): FrameHistogram.Snapshot = phaseHistograms[phase.ordinal].snapshot()
 
     /** For performance monitoring: start the counters over again from scratch. */
     fun frameReset() {
+        phaseHistograms.forEach { it.reset() }
+
         samples = 0
         minRuntime = 0
         maxRuntime = 0
         avgRuntimeAccumulator = 0
         lastFPSTime = 0
+        scheduledFrames = 0
+        scheduledDelayAccumulator = 0
+    }
+
+    /** For performance monitoring: the [FramePacer] calls this with the delay it picked for the next frame. */
+    fun frameScheduled(delayMillis: Long) {
+        scheduledFrames++
+        scheduledDelayAccumulator += delayMillis
     }
 
     /** For performance monitoring: report the FPS counters and reset them immediately. */
@@ -128,7 +268,7 @@ object TimeWrapper {
 
         val elapsedTime = currentTime - lastFPSTime // ns since last time we printed something
         if (samples > 0 && elapsedTime > 0) {
-            val fps = samples * 1000000000f / elapsedTime // * 10^9 so we're not just computing frames per nanosecond
+            fps = samples * 1000000000f / elapsedTime // * 10^9 so we're not just computing frames per nanosecond
             Log.i(TAG, "FPS: %.3f, samples: $samples".format(fps))
 
             Log.i(TAG,
@@ -140,10 +280,34 @@ object TimeWrapper {
             // this waketime percentage is really a lower bound; it's not counting work in the render thread
             // thread that's outside of the ClockFace rendering methods, and it's also not counting
             // work that happens on other threads
-            Log.i(TAG, "Waketime: %.3f %%".format(100f * avgRuntimeAccumulator / elapsedTime))
+            wakePercent = 100f * avgRuntimeAccumulator / elapsedTime
+            Log.i(TAG, "Waketime: %.3f %%".format(wakePercent))
+
+            Phase.values().forEach {
+                val snapshot = phaseHistograms[it.ordinal].snapshot()
+                if (snapshot.count > 0) {
+                    Log.i(TAG, "Phase $it: $snapshot")
+                    PerfTrace.record(PerfTrace.Event.PHASE_P50, snapshot.p50Nanos, it.ordinal)
+                    PerfTrace.record(PerfTrace.Event.PHASE_P99, snapshot.p99Nanos, it.ordinal)
+                    PerfTrace.record(PerfTrace.Event.PHASE_MAX, snapshot.maxNanos, it.ordinal)
+                }
+            }
+
+            if (scheduledFrames > 0)
+                Log.i(TAG, "Paced frames: $scheduledFrames, avg requested interval: %.1f ms"
+                    .format(scheduledDelayAccumulator.toFloat() / scheduledFrames))
 
             lastFPSTime = 0
         }
+
+        // the trace file is how we find out, after the fact, what was going on when the battery drained
+        PerfTrace.record(
+            PerfTrace.Event.BATTERY,
+            (BatteryWrapper.batteryPct * 1000).toLong(),
+            if (BatteryWrapper.isCharging) 1 else 0
+        )
+        PerfTrace.flush()
+
         frameReset()
     }
 
@@ -155,6 +319,11 @@ object TimeWrapper {
     /** For performance monitoring: call this at the end of every screen refresh. */
     fun frameEnd() {
         val frameEndTime = SystemClock.elapsedRealtimeNanos()
+        val runtime = frameEndTime - frameStartTime // ns since frameStart() called
+
+        phaseHistograms[Phase.FRAME.ordinal].record(runtime)
+        lastFrameRuntime = runtime
+        PerfTrace.record(PerfTrace.Event.FRAME, runtime)
 
         // first sample around, we're not remembering anything, just the time it ended; this gets on smooth footing for subsequent samples
         if (lastFPSTime == 0L) {
@@ -163,7 +332,6 @@ object TimeWrapper {
         }
 
         val elapsedTime = frameEndTime - lastFPSTime // ns since last time we printed something
-        val runtime = frameEndTime - frameStartTime // ns since frameStart() called
 
         if (samples == 0) {
             avgRuntimeAccumulator = runtime
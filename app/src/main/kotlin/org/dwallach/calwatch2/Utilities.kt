@@ -17,10 +17,11 @@ object Utilities {
     /**
      * This function, called from all over the place, is used to indicate that
      * every instance of a ClockFace (whether it's on the watchface or inside
-     * the config panel) is now invalid and needs to be redrawn.
+     * the config panel) needs to be redrawn, and why. Each ClockFace only drops
+     * the caches that depend on the given [reason].
      */
-    fun redrawEverything() {
-        ClockFace.wipeAllCaches()
+    fun redrawEverything(reason: Invalidation) {
+        ClockFace.invalidateAll(reason)
         AnalogComplicationConfigRecyclerViewAdapter.reloadAllToggles()
         ClockFaceConfigView.redraw()
         CalWatchFaceService.redraw()
@@ -0,0 +1,206 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+package org.dwallach.calwatch2
+
+import android.graphics.Paint
+import android.graphics.Path
+import android.graphics.RectF
+import android.os.SystemClock
+import android.util.Log
+import java.util.concurrent.atomic.AtomicLong
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+
+private val TAG = "WedgeGeometry"
+
+/**
+ * The calendar wedges, turned into Paths: one per color, plus one for all the outlines, ready for
+ * [ClockFace] to draw. We used to build these lazily, on the UI thread, on the first frame after every
+ * calendar update, and all those RectF allocations and Path.arcTo() calls made that frame miss its
+ * deadline. The geometry only depends on the layout and the surface size, so now it's built in
+ * the background: [CalendarFetcher] builds it right after the layout, for the last surface size
+ * the watchface told us about, and publishes it in the [FaceModel] alongside the layout. If the
+ * size doesn't match (or there wasn't any geometry, as with a restored [EventSnapshot]), ClockFace
+ * asks for it with [buildAsync] and carries on with what it had until it arrives.
+ *
+ * Once built, a WedgeGeometry is never modified, so it's safe to hand from one thread to another.
+ * Each one gets a unique [id], which ClockFace folds into its calendar layer key: a new geometry
+ * (e.g., for a new surface size) always means a new key, even when the calendar itself hasn't changed.
+ */
+class WedgeGeometry private constructor(
+    val id: Long,
+    private val source: List<EventWrapper>,
+    val width: Int,
+    val height: Int,
+    val batches: List<Batch>,
+    val outline: Path
+) {
+    /** All the wedges that share a paint (i.e., come from the same calendar), merged into one Path. */
+    class Batch(val paint: Paint, val path: Path)
+
+    /** Whether this geometry was built for exactly this list of events and this surface size. */
+    fun matches(visibleEventList: List<EventWrapper>, width: Int, height: Int) =
+        source === visibleEventList && this.width == width && this.height == height
+
+    override fun toString() = "WedgeGeometry(id($id), size($width x $height), events(${source.size}), colors(${batches.size}))"
+
+    companion object {
+        const val RING_MIN_RADIUS = 0.2f
+        const val RING_MAX_RADIUS = 0.9f
+        const val RING_WIDTH = RING_MAX_RADIUS - RING_MIN_RADIUS
+
+        // width in the high bits, height in the low bits, so readers on other threads always get a consistent pair
+        @Volatile
+        private var surfaceSize: Long = 0
+
+        private val scope = CoroutineScope(SupervisorJob() + CalendarDispatcher.dispatcher)
+
+        // geometries get built on more than one thread, so the ids come from an atomic counter; zero means "no geometry"
+        private val nextId = AtomicLong(1)
+
+        /** The watchface calls this whenever its size changes, so [buildForSurface] knows what to build for. */
+        fun setSurfaceSize(width: Int, height: Int) {
+            surfaceSize = (width.toLong() shl 32) or (height.toLong() and 0xffffffffL)
+        }
+
+        /**
+         * Builds the geometry for the watchface's current surface size, or returns null if we don't
+         * know that yet. Meant to be called on a background thread, right after the layout.
+         */
+        fun buildForSurface(layoutPair: Pair<List<EventWrapper>, Int>): WedgeGeometry? {
+            val size = surfaceSize
+            val width = (size ushr 32).toInt()
+            val height = size.toInt()
+            if (width <= 0 || height <= 0) return null
+
+            return build(layoutPair.first, layoutPair.second, width, height)
+        }
+
+        /**
+         * Builds the geometry on the [CalendarDispatcher] thread, then calls [onDone] with the
+         * result on the UI thread.
+         */
+        fun buildAsync(
+            visibleEventList: List<EventWrapper>,
+            maxLevel: Int,
+            width: Int,
+            height: Int,
+            onDone: (WedgeGeometry) -> Unit
+        ) {
+            scope.launch {
+                val geometry = build(visibleEventList, maxLevel, width, height)
+                withContext(Dispatchers.Main) { onDone(geometry) }
+            }
+        }
+
+        /** Builds the geometry for the given layout and surface size. Safe to call on any thread. */
+        fun build(visibleEventList: List<EventWrapper>, maxLevel: Int, width: Int, height: Int): WedgeGeometry {
+            val startTimeNano = SystemClock.elapsedRealtimeNanos()
+
+            // same arithmetic as ClockFace.setSize()
+            val cx = width / 2
+            val cy = height / 2
+            val radius = if (cx > cy) cy else cx
+
+            val batches = LinkedHashMap<Paint, Path>() // keeps the colors in layout order
+            val outline = Path()
+
+            //
+            // Our drawing routines take angles that go from 0-60. By dividing by 12 minutes,
+            // that ensures that 12 hours will go all the way around. Why? Because:
+            //
+            // 60 * 12 minutes = 12 hours
+            //
+            val twelveMinutes = 12.minutes.toDouble()
+
+            visibleEventList.forEach {
+                val e = it.calendarEvent
+
+                val path = radialArcPath(
+                    cx, cy, radius,
+                    e.startTime / twelveMinutes,
+                    e.endTime / twelveMinutes,
+                    RING_MAX_RADIUS - it.minLevel * RING_WIDTH / (maxLevel + 1),
+                    RING_MAX_RADIUS - (it.maxLevel + 1) * RING_WIDTH / (maxLevel + 1)
+                )
+
+                batches.getOrPut(it.paint) { Path() }.addPath(path)
+                outline.addPath(path)
+            }
+
+            val result = WedgeGeometry(
+                nextId.getAndIncrement(),
+                visibleEventList,
+                width,
+                height,
+                batches.map { (paint, path) -> Batch(paint, path) },
+                outline
+            )
+
+            val endTimeNano = SystemClock.elapsedRealtimeNanos()
+            Log.i(TAG, "build: $result, %.3f ms".format((endTimeNano - startTimeNano) / 1000000.0))
+            return result
+        }
+
+        /**
+         * Builds the path for a radial arc (i.e., a calendar wedge) with the specific start and end times
+         * and radii.
+         */
+        private fun radialArcPath(
+            cx: Int,
+            cy: Int,
+            radius: Int,
+            secondsStart: Double,
+            secondsEnd: Double,
+            startRadiusRatio: Float,
+            endRadiusRatio: Float
+        ): Path {
+            // Below is an attempt to do this "correctly" using the arc functionality supported natively
+            // by Android's Path.
+
+            if (startRadiusRatio < 0 || startRadiusRatio > 1 || endRadiusRatio < 0 || endRadiusRatio > 1) {
+                // if this happens, then we've got a serious bug somewhere; time for a kaboom
+                errorLogAndThrow(TAG,
+                    "arc too big! radius(%.2f -> %.2f), seconds(%.2f -> %.2f)".format(
+                        startRadiusRatio,
+                        endRadiusRatio,
+                        secondsStart,
+                        secondsEnd
+                    )
+                )
+            }
+
+            val startOval = getRectRadius(cx, cy, radius, startRadiusRatio)
+            val endOval = getRectRadius(cx, cy, radius, endRadiusRatio)
+
+            return Path().apply {
+                arcTo(startOval, (secondsStart * 6 - 90).toFloat(), ((secondsEnd - secondsStart) * 6).toFloat(), true)
+                arcTo(endOval, (secondsEnd * 6 - 90).toFloat(), (-(secondsEnd - secondsStart) * 6).toFloat())
+                close()
+            }
+        }
+
+        private fun getRectRadius(cx: Int, cy: Int, radius: Int, fractionFromCenter: Float) = RectF(
+            clockX(cx, radius, 45.0, fractionFromCenter), // left
+            clockY(cy, radius, 0.0, fractionFromCenter), // top
+            clockX(cx, radius, 15.0, fractionFromCenter), // right
+            clockY(cy, radius, 30.0, fractionFromCenter) // bottom
+        )
+
+        // clock math, through the same tables as ClockFace, so the wedges and the dial agree to the pixel;
+        // we only ever ask for 12, 3, 6, and 9 o'clock, which land exactly on table entries
+        private fun clockX(cx: Int, radius: Int, seconds: Double, fractionFromCenter: Float) =
+            (cx + radius * fractionFromCenter * DialTables.cos(seconds)).toFloat()
+
+        private fun clockY(cy: Int, radius: Int, seconds: Double, fractionFromCenter: Float) =
+            (cy + radius * fractionFromCenter * DialTables.sin(seconds)).toFloat()
+    }
+}
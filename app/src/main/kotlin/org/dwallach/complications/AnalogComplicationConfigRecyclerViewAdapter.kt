@@ -29,6 +29,7 @@ import java.util.WeakHashMap
 import java.util.concurrent.Executors
 import org.dwallach.R
 import org.dwallach.calwatch2.ClockState
+import org.dwallach.calwatch2.Invalidation
 import org.dwallach.calwatch2.PreferencesHelper
 import org.dwallach.calwatch2.Utilities
 import org.dwallach.calwatch2.errorLogAndThrow
@@ -137,7 +138,7 @@ class AnalogComplicationConfigRecyclerViewAdapter(
                     { ClockState.showDayDate }, {
                         ClockState.showDayDate = it
                         PreferencesHelper.savePreferences(parent.context)
-                        Utilities.redrawEverything()
+                        Utilities.redrawEverything(Invalidation.STYLE)
                     })
 
             else -> throw RuntimeException("unknown viewType: $viewType")
@@ -9,9 +9,13 @@ package org.dwallach.complications
 import android.content.ComponentName
 import android.content.Context
 import android.content.Intent.FLAG_ACTIVITY_NEW_TASK
+import android.graphics.Bitmap
 import android.graphics.Canvas
 import android.graphics.Color
 import android.graphics.Rect
+import android.graphics.drawable.Drawable
+import android.os.Handler
+import android.os.Looper
 import android.support.wearable.complications.ComplicationData
 import android.support.wearable.complications.ComplicationData.TYPE_EMPTY
 import android.support.wearable.complications.ComplicationData.TYPE_ICON
@@ -84,6 +88,12 @@ private val TAG = "ComplicationWrapper"
  * you would call [drawComplications]. If you have an analog watch and you want the complications
  * below the watch hands, then draw your hands *after* you call [drawComplications].
  *
+ * Foreground complications are rendered into per-slot bitmaps, and each frame just blits those.
+ * A slot is only re-rendered when its data changes, when the ambient or low-bit properties change,
+ * when its drawable asks (e.g., an icon finished loading), or when its time-dependent text says it's
+ * due to change (see [SlotCache]). That all happens inside [drawComplications], so there's nothing
+ * extra for you to do.
+ *
  * If you want to adjust the geometry of your watchface around the presence or absence of a given
  * complication, you can call [isComplicationVisible]. These queries are guaranteed to be efficient enough
  * that you can call them on every screen redraw without impacting performance.
@@ -107,11 +117,12 @@ object ComplicationWrapper {
 
     /**
      * Call this from your main redraw loop and the complications will be rendered to the given canvas.
+     * Slots whose bitmaps are still good are just blitted.
      */
-    fun drawComplications(canvas: Canvas, currentTimeMillis: Long) =
-        complicationDrawableMap.keys
-            .filter { it != BACKGROUND_COMPLICATION_ID }
-            .forEach { complicationDrawableMap[it]?.draw(canvas, currentTimeMillis) }
+    fun drawComplications(canvas: Canvas, currentTimeMillis: Long) {
+        // plain loop rather than filter/forEach, since this runs on every frame
+        for (i in slotCaches.indices) slotCaches[i].draw(canvas, currentTimeMillis)
+    }
 
     /**
      * Call this from your main redraw loop specifically to draw the background complication.
@@ -168,17 +179,21 @@ object ComplicationWrapper {
     /**
      * Call this every time you get an onPropertiesChanged() event.
      */
-    fun updateProperties(ambientLowBit: Boolean, burnInProtection: Boolean) =
+    fun updateProperties(ambientLowBit: Boolean, burnInProtection: Boolean) {
         complicationDrawableMap.values.forEach {
             it.setLowBitAmbient(ambientLowBit)
             it.setBurnInProtection(burnInProtection)
         }
+        invalidateSlots()
+    }
 
     /**
      * Call this every time the ambient mode changes.
      */
-    fun updateAmbientMode(ambientMode: Boolean) =
+    fun updateAmbientMode(ambientMode: Boolean) {
         complicationDrawableMap.values.forEach { it.setInAmbientMode(ambientMode) }
+        invalidateSlots()
+    }
 
     /**
      * Call this when the size of the screen changes, which is to say, at least once
@@ -233,6 +248,7 @@ object ComplicationWrapper {
         // to apply some styles to our complications.
 
         complicationDrawableMap.values.forEach(stylingFunc)
+        invalidateSlots()
     }
 
     /** Call this whenever you get an onComplicationUpdate() event. */
@@ -244,6 +260,7 @@ object ComplicationWrapper {
         )
 
         complicationDrawableMap[complicationId]?.setComplicationData(complicationData)
+        slotCaches.find { it.id == complicationId }?.valid = false
 
         when {
             complicationData == null ||
@@ -303,6 +320,110 @@ object ComplicationWrapper {
 
     private var complicationDrawableMap: Map<Int, ComplicationDrawable> = emptyMap()
     private var complicationDataMap: Map<Int, ComplicationData> = emptyMap()
+    private var slotCaches: Array<SlotCache> = emptyArray()
+
+    private val handler = Handler(Looper.getMainLooper())
+
+    /**
+     * The cached rendering of one foreground complication. [ComplicationDrawable] draws itself at its
+     * bounds, so we hand it a canvas translated such that its bounds land at the origin of our bitmap,
+     * then blit the bitmap back at the bounds.
+     *
+     * We're also the drawable's [Drawable.Callback], which is how we find out when it wants to be
+     * redrawn for reasons of its own, like an icon that finished loading in the background. (The
+     * drawable only keeps a weak reference to its callback, so it matters that we're alive as long
+     * as the drawable is.)
+     */
+    private class SlotCache(val id: Int, val drawable: ComplicationDrawable) : Drawable.Callback {
+        var valid = false
+        private var bitmap: Bitmap? = null
+        private val canvas = Canvas()
+        private var nextChangeTime = Long.MAX_VALUE
+
+        var renders = 0
+        var blits = 0
+
+        init {
+            drawable.callback = this
+        }
+
+        fun draw(canvas: Canvas, currentTimeMillis: Long) {
+            val bounds = drawable.bounds ?: return
+            if (bounds.isEmpty || !complicationDataMap.containsKey(id)) return
+
+            if (!valid || currentTimeMillis >= nextChangeTime) render(bounds, currentTimeMillis) else blits++
+            bitmap?.let { canvas.drawBitmap(it, bounds.left.toFloat(), bounds.top.toFloat(), null) }
+        }
+
+        private fun render(bounds: Rect, currentTimeMillis: Long) {
+            var lBitmap = bitmap
+            if (lBitmap == null || lBitmap.width != bounds.width() || lBitmap.height != bounds.height()) {
+                lBitmap?.recycle()
+                lBitmap = Bitmap.createBitmap(bounds.width(), bounds.height(), Bitmap.Config.ARGB_8888)
+                bitmap = lBitmap
+                canvas.setBitmap(lBitmap)
+            }
+
+            lBitmap.eraseColor(Color.TRANSPARENT)
+            canvas.save()
+            canvas.translate(-bounds.left.toFloat(), -bounds.top.toFloat())
+            drawable.draw(canvas, currentTimeMillis)
+            canvas.restore()
+
+            nextChangeTime = nextChangeTime(complicationDataMap[id], currentTimeMillis)
+            valid = true
+            renders++
+        }
+
+        fun recycle() {
+            bitmap?.recycle()
+            bitmap = null
+            valid = false
+        }
+
+        override fun invalidateDrawable(who: Drawable) {
+            valid = false
+            CalWatchFaceService.redraw()
+        }
+
+        override fun scheduleDrawable(who: Drawable, what: Runnable, `when`: Long) {
+            handler.postAtTime(what, who, `when`)
+        }
+
+        override fun unscheduleDrawable(who: Drawable, what: Runnable) {
+            handler.removeCallbacks(what, who)
+        }
+    }
+
+    /**
+     * The next time at which rendering this complication data would give a different result: when
+     * any time-dependent text (e.g., "5 mins" counting down to a meeting) ticks over, or when the
+     * data becomes active or inactive. If nothing about it depends on the time, that's never.
+     */
+    private fun nextChangeTime(data: ComplicationData?, now: Long): Long {
+        if (data == null) return Long.MAX_VALUE
+
+        var result = Long.MAX_VALUE
+        listOf(data.shortText, data.shortTitle, data.longText, data.longTitle).forEach {
+            if (it != null && it.isTimeDependent) result = minOf(result, it.getNextChangeTime(now))
+        }
+
+        val start = data.startDateTimeMillis
+        val end = data.endDateTimeMillis
+        if (now < start) result = minOf(result, start)
+        else if (now < end) result = minOf(result, end)
+
+        // ComplicationText reports times that have already passed as-is; make sure we don't re-render every frame
+        return if (result <= now) now + 1000 else result
+    }
+
+    /** Forces every complication to be re-rendered the next time it's drawn. */
+    private fun invalidateSlots() = slotCaches.forEach { it.valid = false }
+
+    /** Logs how often the complication bitmaps are being re-rendered versus just blitted. */
+    fun report() = slotCaches.forEach {
+        Log.i(TAG, "slot ${complicationIdToLocationString(it.id)}: renders(${it.renders}), blits(${it.blits})")
+    }
 
     private var wimpyInitFirstTime = true
 
@@ -353,6 +474,13 @@ object ComplicationWrapper {
         // us convert from an array to a map in one go. Functional programming FTW!
         complicationDrawableMap = activeComplicationIds.associate { it to ComplicationDrawable(context) }
 
+        // the background complication is drawn directly, if it's drawn at all, so no cache for it
+        slotCaches.forEach { it.recycle() }
+        slotCaches = complicationDrawableMap
+            .filter { it.key != BACKGROUND_COMPLICATION_ID }
+            .map { SlotCache(it.key, it.value) }
+            .toTypedArray()
+
         // custom settings here: black unless an image bitmap makes it otherwise
         complicationDrawableMap[BACKGROUND_COMPLICATION_ID]?.setBackgroundColorActive(Color.BLACK)
 
@@ -0,0 +1,139 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+package org.dwallach.calwatch2
+
+import android.graphics.Bitmap
+import android.graphics.Paint
+import android.graphics.Path
+import org.dwallach.calwatch2.DisplayList.Kind
+import org.dwallach.calwatch2.bench.CountingCanvas
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+/**
+ * Checks what goes into a [DisplayList], both when we build one by hand and when [ClockFace] builds
+ * the face and month box, and that [DisplayList.replay] turns each command into the Canvas calls
+ * we expect. The face counts are for a square screen with no complications, so there's no flat
+ * bottom and nothing displacing the tick marks or numerals.
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28])
+class DisplayListTest {
+    private val fill = Paint()
+    private val outline = Paint()
+
+    /** One of everything: a shape drawn twice, a path, a circle, and text with and without a shadow. */
+    private fun sampleList() = DisplayList.Builder(KEY).apply {
+        shape(fill, outline) {
+            it.quad(0f, 0f, 10f, 0f, 10f, 10f, 0f, 10f)
+            it.quad(20f, 0f, 30f, 0f, 30f, 10f, 20f, 10f)
+        }
+        shape(fill) { } // no quads, so this one shouldn't show up at all
+        path(Path(), fill)
+        circle(50f, 50f, 5f, fill)
+        text("12", 40f, 40f, fill, outline)
+        text("3", 60f, 40f, fill, null)
+    }.build()
+
+    private fun counts(list: DisplayList) = Kind.values().map { list.commandCount(it) }
+
+    @Test
+    fun builderCountsEachKind() {
+        val list = sampleList()
+
+        assertEquals(KEY, list.key)
+        assertEquals(7, list.commandCount)
+        assertEquals(2, list.quadCount)
+        // SHAPE, PATH, CIRCLE, TEXT
+        assertEquals(listOf(2, 1, 1, 2), counts(list))
+    }
+
+    @Test
+    fun replayIssuesCanvasCalls() {
+        val canvas = CountingCanvas(Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888))
+        sampleList().replay(canvas, GlyphCache())
+
+        // two for the shape, one for the path, and three for the text: "12" has a shadow, "3" doesn't
+        assertEquals(6, canvas.paths)
+        assertEquals(1, canvas.circles)
+        assertEquals(7, canvas.drawCalls)
+        // GlyphCache wraps each string in save(), translate(), restore()
+        assertEquals(6, canvas.stateOps)
+        assertEquals(0, canvas.bitmapBlits)
+    }
+
+    private fun clockFace(faceMode: Int, showDayDate: Boolean): ClockFace {
+        ClockState.faceMode = faceMode
+        ClockState.showDayDate = showDayDate
+
+        val face = ClockFace()
+        face.ambientMode = false
+        face.setSize(SIZE, SIZE)
+        return face
+    }
+
+    @Test
+    fun toolFace() {
+        val list = clockFace(ClockState.FACE_TOOL, true).buildFace(KEY)
+
+        // all the ticks are one shape, filled and then outlined: 48 minute ticks, the double line
+        // at 12 o'clock, and a line for every other hour
+        assertEquals(listOf(2, 0, 0, 0), counts(list))
+        assertEquals(48 + 2 + 11, list.quadCount)
+    }
+
+    @Test
+    fun liteFace() {
+        val list = clockFace(ClockState.FACE_LITE, true).buildFace(KEY)
+
+        assertEquals(listOf(2, 0, 0, 0), counts(list))
+        assertEquals(2 + 11, list.quadCount)
+    }
+
+    @Test
+    fun numbersFace() {
+        // with the day/date showing, there's no "9", and no line at 3, 6, 9, or 12
+        val withDayDate = clockFace(ClockState.FACE_NUMBERS, true).buildFace(KEY)
+        assertEquals(listOf(2, 0, 0, 3), counts(withDayDate))
+        assertEquals(8, withDayDate.quadCount)
+
+        val withoutDayDate = clockFace(ClockState.FACE_NUMBERS, false).buildFace(KEY)
+        assertEquals(listOf(2, 0, 0, 4), counts(withoutDayDate))
+        assertEquals(8, withoutDayDate.quadCount)
+
+        val canvas = CountingCanvas(Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888))
+        withDayDate.replay(canvas, GlyphCache())
+
+        // the tick shape twice, then each numeral's shadow and the numeral itself
+        assertEquals(2 + 3 * 2, canvas.paths)
+        assertEquals(0, canvas.circles)
+        assertEquals(3 * 3, canvas.stateOps)
+    }
+
+    @Test
+    fun monthBox() {
+        val list = clockFace(ClockState.FACE_TOOL, true).buildMonthBox(KEY)
+
+        // the day of the week and the day of the month, each with a shadow
+        assertEquals(listOf(0, 0, 0, 2), counts(list))
+        assertEquals(0, list.quadCount)
+
+        val canvas = CountingCanvas(Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888))
+        list.replay(canvas, GlyphCache())
+        assertEquals(4, canvas.paths)
+        assertEquals(6, canvas.stateOps)
+    }
+
+    companion object {
+        private const val SIZE = 400
+        private const val KEY = 0x1234L
+    }
+}
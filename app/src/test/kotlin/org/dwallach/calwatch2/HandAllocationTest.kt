@@ -0,0 +1,83 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+package org.dwallach.calwatch2
+
+import android.graphics.Canvas
+import android.graphics.Paint
+import android.graphics.Path
+import java.lang.management.ManagementFactory
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+/**
+ * The hands are the one thing we draw from scratch on every frame, sixty times a second with the
+ * second hand sweeping, so [ClockFace.drawHands] isn't allowed to allocate anything once the hand
+ * paths are built. We measure that the same way [org.dwallach.calwatch2.bench.RenderBenchmark]
+ * does, with the per-thread allocation counter.
+ *
+ * The canvas here throws everything away, rather than passing it on to Robolectric's shadows,
+ * which record every call they see; otherwise, we'd be measuring their garbage, not ours.
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28])
+class HandAllocationTest {
+    private class NullCanvas : Canvas() {
+        var paths = 0
+
+        override fun save() = 1
+        override fun restoreToCount(saveCount: Int) = Unit
+        override fun translate(dx: Float, dy: Float) = Unit
+        override fun rotate(degrees: Float) = Unit
+
+        override fun drawPath(path: Path, paint: Paint) {
+            paths++
+        }
+    }
+
+    private val threadBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+
+    private inline fun allocatedBytes(block: () -> Unit): Long {
+        val threadId = Thread.currentThread().id
+        val before = threadBean.getThreadAllocatedBytes(threadId)
+        block()
+        return threadBean.getThreadAllocatedBytes(threadId) - before
+    }
+
+    @Test
+    fun handsDontAllocate() {
+        ClockState.showSeconds = true
+        TimeWrapper.update()
+
+        val face = ClockFace()
+        face.ambientMode = false
+        face.setSize(SIZE, SIZE)
+
+        val canvas = NullCanvas()
+
+        // the first frame builds the hand paths and the palette, and the rest give the JIT a chance to settle
+        repeat(WARMUP_FRAMES) { face.drawHands(canvas) }
+
+        // the hour, minute, and second hands, each with its shadow
+        assertEquals(WARMUP_FRAMES * 6, canvas.paths)
+
+        // whatever the measurement itself costs, which we don't want to charge to the hands
+        val overhead = allocatedBytes { }
+        val bytes = allocatedBytes { repeat(MEASURED_FRAMES) { face.drawHands(canvas) } } - overhead
+
+        assertEquals("bytes allocated in $MEASURED_FRAMES frames", 0L, bytes)
+    }
+
+    companion object {
+        private const val SIZE = 454
+        private const val WARMUP_FRAMES = 1000
+        private const val MEASURED_FRAMES = 1000
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+package org.dwallach.calwatch2.bench
+
+import java.util.Calendar
+import java.util.Random
+import java.util.TimeZone
+import org.dwallach.calwatch2.CalendarEvent
+import org.dwallach.calwatch2.TimeWrapper
+import org.dwallach.calwatch2.hours
+import org.dwallach.calwatch2.minutes
+
+/**
+ * Synthetic calendars shaped like the ones people actually have, rather than uniformly random
+ * events. Each [Workload] is a different kind of day, and the same workload, start time, and
+ * seed always produce the same events.
+ *
+ * Like [org.dwallach.calwatch2.CalendarFetcher], we produce everything in a 24-hour window
+ * starting at the top of the current hour, plus a few events that started earlier and are
+ * still going, so the clipping code has something to do. The exception is [Workload.DST_CROSSING],
+ * which is pinned to one particular night, and only makes sense inside [withDstClock].
+ */
+object CalendarWorkloads {
+    enum class Workload {
+        /** A handful of personal appointments, mostly not overlapping. */
+        SPARSE_PERSONAL,
+
+        /** A workday tiled with half-hour and hour-long meetings, each ending when the next starts. */
+        BACK_TO_BACK,
+
+        /** Lots of calendars (team, room, on-call, holidays, ...) all piled on top of each other. */
+        SHARED_CALENDARS,
+
+        /** Multi-hour blocks (travel, conferences, "focus time") with short meetings on top. */
+        LONG_BLOCKS,
+
+        /**
+         * Meetings on fixed local wall-clock times across the end of daylight saving time in New York.
+         * Under [withDstClock], the clock reads 12:30am that night, so the repeated 1am hour is an
+         * hour into the visible dial, and the clipping runs across the transition.
+         */
+        DST_CROSSING
+    }
+
+    // a few typical Google Calendar colors, one per calendar
+    private val COLORS = intArrayOf(
+        0xff4285f4.toInt(), 0xffdb4437.toInt(), 0xfff4b400.toInt(), 0xff0f9d58.toInt(),
+        0xffab47bc.toInt(), 0xff00acc1.toInt(), 0xffff7043.toInt(), 0xff9e9d24.toInt(),
+        0xff5c6bc0.toInt(), 0xfff06292.toInt(), 0xff00796b.toInt(), 0xffc2185b.toInt()
+    )
+
+    // New York falls back an hour on this day, at 2am local time
+    private const val DST_ZONE = "America/New_York"
+    private const val DST_YEAR = 2022
+    private const val DST_MONTH = Calendar.NOVEMBER
+    private const val DST_DAY = 6
+
+    /**
+     * Runs [block] with the default timezone set to New York and [TimeWrapper]'s clock set to 12:30am
+     * on the night it falls back, then puts both back the way they were.
+     */
+    fun <T> withDstClock(block: () -> T): T {
+        val oldZone = TimeZone.getDefault()
+        val oldOffset = TimeWrapper.magicOffset
+        val zone = TimeZone.getTimeZone(DST_ZONE)
+
+        val calendar = Calendar.getInstance(zone)
+        calendar.clear()
+        calendar.set(DST_YEAR, DST_MONTH, DST_DAY, 0, 30, 0)
+
+        try {
+            TimeZone.setDefault(zone)
+            TimeWrapper.magicOffset = calendar.timeInMillis - System.currentTimeMillis()
+            TimeWrapper.timeZoneChanged()
+            return block()
+        } finally {
+            TimeZone.setDefault(oldZone)
+            TimeWrapper.magicOffset = oldOffset
+            TimeWrapper.timeZoneChanged()
+        }
+    }
+
+    /**
+     * Generates the events for one workload. [floorHour] is the top of the current hour, in GMT
+     * milliseconds, which is where the visible dial starts. [Workload.DST_CROSSING] ignores it,
+     * since its events are on a fixed date.
+     */
+    fun generate(workload: Workload, floorHour: Long, seed: Long): List<CalendarEvent> {
+        val random = Random(seed * 31 + workload.ordinal)
+        val events = when (workload) {
+            Workload.SPARSE_PERSONAL -> sparsePersonal(random, floorHour)
+            Workload.BACK_TO_BACK -> backToBack(random, floorHour)
+            Workload.SHARED_CALENDARS -> sharedCalendars(random, floorHour)
+            Workload.LONG_BLOCKS -> longBlocks(random, floorHour)
+            Workload.DST_CROSSING -> dstCrossing(random)
+        }
+
+        // the calendar provider hands them to us in no particular order
+        events.shuffle(random)
+        return events
+    }
+
+    private fun sparsePersonal(random: Random, floorHour: Long): MutableList<CalendarEvent> {
+        val events = ArrayList<CalendarEvent>()
+        val count = 3 + random.nextInt(4)
+        repeat(count) {
+            // on the quarter hour, anywhere in the next day, 30 to 90 minutes long
+            val start = floorHour + random.nextInt(24 * 4) * 15.minutes
+            val length = (2 + random.nextInt(5)) * 15.minutes
+            events += CalendarEvent(start, start + length, COLORS[random.nextInt(2)])
+        }
+
+        // and the doctor's appointment that started before the dial does
+        events += CalendarEvent(floorHour - 30.minutes, floorHour + 30.minutes, COLORS[0])
+        return events
+    }
+
+    private fun backToBack(random: Random, floorHour: Long): MutableList<CalendarEvent> {
+        val events = ArrayList<CalendarEvent>()
+
+        // a nine-hour workday, starting an hour ago, with no gaps
+        var t = floorHour - 1.hours
+        val endOfDay = t + 9.hours
+        while (t < endOfDay) {
+            val length = when (random.nextInt(4)) {
+                0 -> 60.minutes
+                1 -> 15.minutes
+                else -> 30.minutes
+            }
+            events += CalendarEvent(t, t + length, COLORS[random.nextInt(3)])
+            t += length
+        }
+
+        // the all-day-ish "working hours" block behind them
+        events += CalendarEvent(floorHour - 1.hours, endOfDay, COLORS[3])
+
+        // and tomorrow morning's standup
+        events += CalendarEvent(floorHour + 18.hours, floorHour + 18.hours + 15.minutes, COLORS[0])
+        return events
+    }
+
+    private fun sharedCalendars(random: Random, floorHour: Long): MutableList<CalendarEvent> {
+        val events = ArrayList<CalendarEvent>()
+        val calendars = 6 + random.nextInt(5)
+
+        for (c in 0 until calendars) {
+            // every calendar likes the same popular half-hour slots, so they overlap heavily
+            repeat(2 + random.nextInt(3)) {
+                val start = floorHour + random.nextInt(12 * 2) * 30.minutes
+                val length = (1 + random.nextInt(4)) * 30.minutes
+                events += CalendarEvent(start, start + length, COLORS[c])
+            }
+        }
+        return events
+    }
+
+    private fun longBlocks(random: Random, floorHour: Long): MutableList<CalendarEvent> {
+        val events = ArrayList<CalendarEvent>()
+
+        // a flight that started before the dial, a conference that runs past it, and some focus time
+        events += CalendarEvent(floorHour - 2.hours, floorHour + (2 + random.nextInt(3)).hours, COLORS[0])
+        events += CalendarEvent(floorHour + 3.hours, floorHour + 15.hours, COLORS[1])
+        events += CalendarEvent(floorHour + 5.hours, floorHour + (8 + random.nextInt(3)).hours, COLORS[2])
+        events += CalendarEvent(floorHour + 9.hours, floorHour + 13.hours, COLORS[2])
+
+        // short meetings on top of all that
+        repeat(6 + random.nextInt(6)) {
+            val start = floorHour + random.nextInt(12 * 4) * 15.minutes
+            val length = (1 + random.nextInt(4)) * 15.minutes
+            events += CalendarEvent(start, start + length, COLORS[3 + random.nextInt(2)])
+        }
+        return events
+    }
+
+    private fun dstCrossing(random: Random): MutableList<CalendarEvent> {
+        val zone = TimeZone.getTimeZone(DST_ZONE)
+        val calendar = Calendar.getInstance(zone)
+
+        // Calendar is lenient, so an hour of -2 is 10pm the night before, and a minute of 90 is 1:30.
+        // Each of these is a wall-clock time, so the DST rules apply.
+        fun wallClock(hour: Int, minute: Int): Long {
+            calendar.clear()
+            calendar.set(DST_YEAR, DST_MONTH, DST_DAY, hour, minute, 0)
+            return calendar.timeInMillis
+        }
+
+        // Events on that day, on the half hour, running from 10pm the night before to 10am. The ones
+        // that span the 1am hour last an hour longer than their wall-clock times would suggest.
+        val events = ArrayList<CalendarEvent>()
+        for (halfHour in -4..19) {
+            if (random.nextInt(3) == 0) continue
+            val start = wallClock(0, halfHour * 30)
+            val end = wallClock(0, (halfHour + 1 + random.nextInt(3)) * 30)
+            events += CalendarEvent(start, end, COLORS[random.nextInt(4)])
+        }
+
+        // a ten-minute reminder every hour on the hour, so the repeated 1am hour gets two of them
+        var t = wallClock(0, 0)
+        while (t < wallClock(10, 0)) {
+            events += CalendarEvent(t, t + 10.minutes, COLORS[4])
+            t += 1.hours
+        }
+
+        return events
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+package org.dwallach.calwatch2.bench
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Paint
+import android.graphics.Path
+import android.graphics.PorterDuff
+import android.graphics.Rect
+import org.robolectric.Shadows.shadowOf
+
+/**
+ * A [Canvas] that counts what's asked of it, and then passes everything through. Under Robolectric's
+ * graphics shadows, the pass-through doesn't actually rasterize anything, so what we're measuring
+ * is our own code: geometry, caching, and the calls we make, not Skia.
+ *
+ * "Path ops" are the number of points in each path we draw, according to Robolectric's shadow
+ * of [Path], which is a decent proxy for how much work the real rasterizer would have to do.
+ */
+class CountingCanvas(bitmap: Bitmap) : Canvas(bitmap) {
+    var drawCalls = 0
+        private set
+    var paths = 0
+        private set
+    var circles = 0
+        private set
+    var pathOps = 0
+        private set
+    var bitmapBlits = 0
+        private set
+    var stateOps = 0
+        private set
+
+    fun reset() {
+        drawCalls = 0
+        paths = 0
+        circles = 0
+        pathOps = 0
+        bitmapBlits = 0
+        stateOps = 0
+    }
+
+    override fun drawPath(path: Path, paint: Paint) {
+        drawCalls++
+        paths++
+        pathOps += shadowOf(path).points.size
+        super.drawPath(path, paint)
+    }
+
+    override fun drawBitmap(bitmap: Bitmap, left: Float, top: Float, paint: Paint?) {
+        drawCalls++
+        bitmapBlits++
+        super.drawBitmap(bitmap, left, top, paint)
+    }
+
+    override fun drawBitmap(bitmap: Bitmap, src: Rect?, dst: Rect, paint: Paint?) {
+        drawCalls++
+        bitmapBlits++
+        super.drawBitmap(bitmap, src, dst, paint)
+    }
+
+    override fun drawText(text: String, x: Float, y: Float, paint: Paint) {
+        drawCalls++
+        super.drawText(text, x, y, paint)
+    }
+
+    override fun drawCircle(cx: Float, cy: Float, radius: Float, paint: Paint) {
+        drawCalls++
+        circles++
+        super.drawCircle(cx, cy, radius, paint)
+    }
+
+    override fun drawColor(color: Int) {
+        drawCalls++
+        super.drawColor(color)
+    }
+
+    override fun drawColor(color: Int, mode: PorterDuff.Mode) {
+        drawCalls++
+        super.drawColor(color, mode)
+    }
+
+    override fun save(): Int {
+        stateOps++
+        return super.save()
+    }
+
+    override fun restore() {
+        stateOps++
+        super.restore()
+    }
+
+    override fun translate(dx: Float, dy: Float) {
+        stateOps++
+        super.translate(dx, dy)
+    }
+}
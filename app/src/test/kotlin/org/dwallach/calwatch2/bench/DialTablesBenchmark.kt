@@ -0,0 +1,104 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+package org.dwallach.calwatch2.bench
+
+import java.util.Random
+import kotlin.math.PI
+import kotlin.math.abs
+import kotlin.math.cos
+import kotlin.math.sin
+import org.dwallach.calwatch2.DialTables
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+/**
+ * Compares [DialTables] against the direct sin()/cos() math it replaced, computing an (x, y) point
+ * on the dial each way, for two kinds of input: whole and tenth-of-a-second positions, which
+ * is what the face, the month box, and the hands mostly ask for, and arbitrary positions, which
+ * have to interpolate. Alongside the time per point, it reports the worst disagreement between
+ * the two, in pixels, at the size of a common round watch.
+ *
+ * Like the other benchmarks here, this is warmup rounds that we throw away, then measured rounds,
+ * and the only numbers that mean anything are the ratios. DialTables logs, so it needs Robolectric.
+ * To run it:
+ *
+ *   ./gradlew :app:testWear2DebugUnitTest --tests '*DialTablesBenchmark*' -Pbench
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28])
+class DialTablesBenchmark {
+    private val dial = DialTables().apply { update(CENTER, CENTER, CENTER, 0) }
+
+    // Accumulates every result, and gets printed at the end, so the JIT can't decide our loops do nothing.
+    private var sink = 0.0
+
+    private fun direct(seconds: Double, fractionFromCenter: Float): Double {
+        val angleRadians = (seconds - 15) * PI * 2.0 / 60.0
+        val x = (CENTER + CENTER * fractionFromCenter * cos(angleRadians)).toFloat()
+        val y = (CENTER + CENTER * fractionFromCenter * sin(angleRadians)).toFloat()
+        return (x + y).toDouble()
+    }
+
+    private fun table(seconds: Double, fractionFromCenter: Float) =
+        (dial.x(seconds, fractionFromCenter) + dial.y(seconds, fractionFromCenter)).toDouble()
+
+    /** Nanoseconds per point, the median over the measured rounds. */
+    private fun time(positions: DoubleArray, point: (Double, Float) -> Double): Double {
+        fun round(): Long {
+            val start = System.nanoTime()
+            var sum = 0.0
+            for (p in positions) sum += point(p, 0.9f)
+            sink += sum
+            return System.nanoTime() - start
+        }
+
+        repeat(WARMUP_ROUNDS) { round() }
+        val rounds = LongArray(MEASURED_ROUNDS) { round() }.sorted()
+        return rounds[rounds.size / 2].toDouble() / positions.size
+    }
+
+    /** The biggest difference, in pixels, between the table and the direct math, for either coordinate. */
+    private fun maxError(positions: DoubleArray): Double = positions.maxOf { p ->
+        val angleRadians = (p - 15) * PI * 2.0 / 60.0
+        val x = CENTER + CENTER * 0.9 * cos(angleRadians)
+        val y = CENTER + CENTER * 0.9 * sin(angleRadians)
+        maxOf(abs(dial.x(p, 0.9f) - x), abs(dial.y(p, 0.9f) - y))
+    }
+
+    @Test
+    fun run() {
+        assumeTrue("set -Pbench to run the dial tables benchmark", System.getProperty("calwatch.bench") == "true")
+
+        val random = Random(SEED)
+        val onTable = DoubleArray(POINTS) { random.nextInt(600) / 10.0 }
+        val anywhere = DoubleArray(POINTS) { random.nextDouble() * 60.0 }
+
+        println("%-12s | %-12s | %-12s | %-7s | %s".format("positions", "direct ns/pt", "table ns/pt", "speedup", "max error (px)"))
+
+        listOf("tenths" to onTable, "arbitrary" to anywhere).forEach { (name, positions) ->
+            val directNanos = time(positions, ::direct)
+            val tableNanos = time(positions, ::table)
+
+            println("%-12s | %12.2f | %12.2f | %6.2fx | %.5f".format(
+                name, directNanos, tableNanos, directNanos / tableNanos, maxError(positions)))
+        }
+
+        println("(checksum: $sink)")
+    }
+
+    companion object {
+        private const val CENTER = 227 // a 454-pixel round watch
+        private const val POINTS = 100000
+        private const val WARMUP_ROUNDS = 20
+        private const val MEASURED_ROUNDS = 50
+        private const val SEED = 2014L
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+package org.dwallach.calwatch2.bench
+
+import java.lang.management.ManagementFactory
+import org.dwallach.calwatch2.CalendarEvent
+import org.dwallach.calwatch2.CalendarFetcher
+import org.dwallach.calwatch2.EventLayoutUniform
+import org.dwallach.calwatch2.TimeWrapper
+import org.dwallach.calwatch2.bench.CalendarWorkloads.Workload
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+/**
+ * Runs the same steps as [CalendarFetcher] does after reading the calendar -- sort, clip to the
+ * visible dial, and the Cassowary layout -- over each of the [CalendarWorkloads], and prints
+ * latency percentiles, bytes allocated, how big the solver's tableau got, and how many of the
+ * calendars the solver couldn't lay out at all. The point is to judge changes to the layout
+ * against calendars shaped like real ones, rather than random constraints.
+ *
+ * This is structured like a JMH run (warmup rounds that we throw away, then measured rounds),
+ * but it runs under Robolectric, since the layout code logs through android.util.Log and
+ * [org.dwallach.calwatch2.EventWrapper] grabs a Paint. Like [RenderBenchmark], the absolute
+ * numbers say nothing about a real watch, and it doesn't run as part of the normal unit tests;
+ * to run it:
+ *
+ *   ./gradlew :app:testWear2DebugUnitTest --tests '*LayoutBenchmark*' -Pbench
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28])
+class LayoutBenchmark {
+    private class Sample(
+        val events: Int,
+        val visible: Int,
+        val failed: Boolean,
+        val rows: Int,
+        val pivots: Long,
+        val allocatedBytes: Long,
+        val nanos: Long
+    )
+
+    @Test
+    fun run() {
+        assumeTrue("set -Pbench to run the layout benchmark", System.getProperty("calwatch.bench") == "true")
+
+        println("%-17s %6s %7s %6s | %-12s | %-15s | %-35s | %s".format(
+            "workload", "events", "visible", "failed", "rows p50/max", "pivots p50/max", "latency (us) p50/p90/p99/max", "bytes p50"))
+
+        Workload.values().forEach { workload ->
+            // the DST workload needs the clock on the night the clocks fall back, so the clipping crosses it
+            if (workload == Workload.DST_CROSSING)
+                CalendarWorkloads.withDstClock { runWorkload(workload) }
+            else
+                runWorkload(workload)
+        }
+    }
+
+    private fun runWorkload(workload: Workload) {
+        TimeWrapper.update()
+        val floorHour = TimeWrapper.localFloorHour - TimeWrapper.gmtOffset
+
+        // several different calendars of each kind, so one lucky seed doesn't decide the result
+        val calendars = (0 until CALENDARS).map { CalendarWorkloads.generate(workload, floorHour, SEED + it) }
+
+        repeat(WARMUP_ROUNDS) { calendars.forEach { measure(it) } }
+        val samples = (0 until MEASURED_ROUNDS).flatMap { calendars.map { measure(it) } }
+
+        println(format(workload, samples))
+    }
+
+    private fun measure(events: List<CalendarEvent>): Sample {
+        val threadBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val threadId = Thread.currentThread().id
+
+        val bytesBefore = threadBean.getThreadAllocatedBytes(threadId)
+        val start = System.nanoTime()
+
+        val clipped = EventLayoutUniform.clip(CalendarFetcher.sortForLayout(events))
+        val layoutPair = EventLayoutUniform.layout(clipped)
+
+        val nanos = System.nanoTime() - start
+        val bytes = threadBean.getThreadAllocatedBytes(threadId) - bytesBefore
+
+        return Sample(
+            events.size,
+            clipped.size,
+            clipped.isNotEmpty() && layoutPair.first.isEmpty(), // the solver gave up
+            EventLayoutUniform.lastSolverRows,
+            EventLayoutUniform.lastSolverPivots,
+            bytes,
+            nanos
+        )
+    }
+
+    private fun format(workload: Workload, samples: List<Sample>): String {
+        // Failed layouts (the solver throws ExCLRequiredFailure on some dense calendars) take a
+        // different path, so they're counted, but left out of the other numbers.
+        val failures = samples.count { it.failed } / MEASURED_ROUNDS
+        val succeeded = samples.filter { !it.failed }
+        if (succeeded.isEmpty()) return "%-17s all %d calendars failed to lay out".format(workload, failures)
+
+        val nanos = succeeded.map { it.nanos }.sorted()
+        val bytes = succeeded.map { it.allocatedBytes }.sorted()
+        val rows = succeeded.map { it.rows }.sorted()
+        val pivots = succeeded.map { it.pivots }.sorted()
+
+        return "%-17s %6.1f %7.1f %6d | %5d %6d | %7d %7d | %8.1f %8.1f %8.1f %8.1f | %d".format(
+            workload,
+            samples.map { it.events }.average(),
+            samples.map { it.visible }.average(),
+            failures,
+            rows[rows.size / 2], rows.last(),
+            pivots[pivots.size / 2], pivots.last(),
+            percentile(nanos, 0.50) / 1000.0, percentile(nanos, 0.90) / 1000.0,
+            percentile(nanos, 0.99) / 1000.0, nanos.last() / 1000.0,
+            bytes[bytes.size / 2]
+        )
+    }
+
+    private fun percentile(sorted: List<Long>, fraction: Double): Long {
+        val index = Math.ceil(fraction * sorted.size).toInt() - 1
+        return sorted[index.coerceIn(0, sorted.size - 1)]
+    }
+
+    companion object {
+        private const val CALENDARS = 10
+        // a dense calendar takes a good fraction of a second to lay out, so we can't afford many rounds
+        private const val WARMUP_ROUNDS = 5
+        private const val MEASURED_ROUNDS = 20
+        private const val SEED = 2014L
+    }
+}
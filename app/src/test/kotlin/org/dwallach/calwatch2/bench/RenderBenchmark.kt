@@ -0,0 +1,171 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+package org.dwallach.calwatch2.bench
+
+import android.graphics.Bitmap
+import java.lang.management.ManagementFactory
+import java.util.Random
+import org.dwallach.calwatch2.CalendarEvent
+import org.dwallach.calwatch2.CalendarFetcher
+import org.dwallach.calwatch2.ClockFace
+import org.dwallach.calwatch2.ClockState
+import org.dwallach.calwatch2.EventLayoutUniform
+import org.dwallach.calwatch2.Invalidation
+import org.dwallach.calwatch2.PaintCan.Style
+import org.dwallach.calwatch2.SharedLayerCache
+import org.dwallach.calwatch2.TimeWrapper
+import org.dwallach.calwatch2.WedgeGeometry
+import org.dwallach.calwatch2.hours
+import org.junit.Assert.assertTrue
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+/**
+ * Replays [ClockFace.drawEverything] on a plain JVM, under Robolectric, for every combination of
+ * calendar density, drawing style, and face mode, and prints what each frame cost: draw calls,
+ * path ops, bitmap blits, bytes allocated, and wall time. Each scenario reports a "cold" frame,
+ * right after all the caches have been dropped, and the median of a run of "warm" frames, which
+ * is what the watch is doing nearly all the time.
+ *
+ * The absolute times say nothing about a real watch. The point is to have a baseline to diff
+ * against when changing the rendering code. This doesn't run as part of the normal unit tests;
+ * to run it:
+ *
+ *   ./gradlew :app:testWear2DebugUnitTest --tests '*RenderBenchmark*' -Pbench
+ *
+ * The results show up in the test's standard output (app/build/reports/tests/...).
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28])
+class RenderBenchmark {
+    private class Scenario(val events: Int, val style: Style, val faceMode: Int)
+
+    private class Result(
+        val drawCalls: Int,
+        val pathOps: Int,
+        val blits: Int,
+        val allocatedBytes: Long,
+        val nanos: Long
+    )
+
+    @Test
+    fun run() {
+        assumeTrue("set -Pbench to run the rendering benchmark", System.getProperty("calwatch.bench") == "true")
+
+        val bitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888)
+        val canvas = CountingCanvas(bitmap)
+
+        ClockState.calendarPermission = true
+        ClockState.showSeconds = true
+        ClockState.showDayDate = true
+        TimeWrapper.update()
+
+        println("%-7s %-7s %-20s %-5s | %-38s | %s".format("events", "visible", "style", "face", "cold: calls/pathOps/blits/bytes/us", "warm (median): calls/pathOps/blits/bytes/us"))
+
+        EVENT_COUNTS.forEach { events ->
+            val visible = loadCalendar(events)
+
+            STYLES.forEach { style ->
+                FACE_MODES.forEach { faceMode ->
+                    val scenario = Scenario(events, style, faceMode)
+                    val face = setup(scenario)
+
+                    val cold = frame(face, canvas)
+                    val warm = (0 until WARM_FRAMES).map { frame(face, canvas) }.sortedBy { it.nanos }[WARM_FRAMES / 2]
+
+                    println("%-7d %-7d %-20s %-5d | %s | %s".format(events, visible, style, faceMode, format(cold), format(warm)))
+                }
+            }
+        }
+    }
+
+    /** A fresh ClockFace, with everything cold, in the given style and face mode. */
+    private fun setup(scenario: Scenario): ClockFace {
+        ClockState.faceMode = scenario.faceMode
+
+        val face = ClockFace()
+        face.setSize(SIZE, SIZE)
+        when (scenario.style) {
+            Style.NORMAL -> face.ambientMode = false
+            else -> {
+                face.ambientLowBit = scenario.style == Style.LOWBIT || scenario.style == Style.LOWBIT_ANTI_BURNIN
+                face.burnInProtection = scenario.style == Style.AMBIENT_ANTI_BURNIN || scenario.style == Style.LOWBIT_ANTI_BURNIN
+                face.ambientMode = true
+            }
+        }
+
+        SharedLayerCache.clear()
+        Invalidation.values().forEach { face.invalidate(it) }
+        return face
+    }
+
+    private fun frame(face: ClockFace, canvas: CountingCanvas): Result {
+        val threadBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val threadId = Thread.currentThread().id
+
+        canvas.reset()
+        TimeWrapper.update()
+
+        val bytesBefore = threadBean.getThreadAllocatedBytes(threadId)
+        val start = System.nanoTime()
+        face.drawEverything(canvas)
+        val nanos = System.nanoTime() - start
+        val bytes = threadBean.getThreadAllocatedBytes(threadId) - bytesBefore
+
+        return Result(canvas.drawCalls, canvas.pathOps, canvas.bitmapBlits, bytes, nanos)
+    }
+
+    private fun format(r: Result) =
+        "%5d %7d %3d %9d %8.1f".format(r.drawCalls, r.pathOps, r.blits, r.allocatedBytes, r.nanos / 1000.0)
+
+    /**
+     * Publishes a synthetic calendar with the given number of events scattered over the next twelve
+     * hours, with a fixed seed so every run sees the same calendar, and returns how many of them
+     * made it onto the dial. We sort, clip, lay out, and build the wedge geometry here, synchronously,
+     * the same way [org.dwallach.calwatch2.CalendarFetcher] would.
+     *
+     * The layout gives up entirely (Cassowary throws ExCLRequiredFailure) on some dense calendars, and
+     * then we'd be benchmarking an empty dial without knowing it, so that's a failure here.
+     */
+    private fun loadCalendar(count: Int): Int {
+        val random = Random(SEED + count)
+        val now = TimeWrapper.gmtTime
+        val colors = intArrayOf(0xff4285f4.toInt(), 0xffdb4437.toInt(), 0xfff4b400.toInt(), 0xff0f9d58.toInt())
+
+        val events = (0 until count).map {
+            val start = now + (random.nextDouble() * 12.hours).toLong()
+            val length = (15 + random.nextInt(8) * 15) * 60000L // 15 minutes to two hours
+            CalendarEvent(start, start + length, colors[random.nextInt(colors.size)])
+        }
+
+        val clipped = EventLayoutUniform.clip(CalendarFetcher.sortForLayout(events))
+        val layoutPair = EventLayoutUniform.layout(clipped)
+        assertTrue(
+            "layout of $count events (${clipped.size} visible) failed",
+            clipped.isEmpty() || layoutPair.first.isNotEmpty()
+        )
+
+        val geometry = WedgeGeometry.build(layoutPair.first, layoutPair.second, SIZE, SIZE)
+        ClockState.setEventList(events, layoutPair, geometry)
+        return layoutPair.first.size
+    }
+
+    companion object {
+        private const val SIZE = 454 // a common round watch
+        private const val WARM_FRAMES = 101
+        private const val SEED = 2014L
+
+        // Much past 20 of these random events, the solver often can't lay them out at all; see loadCalendar().
+        private val EVENT_COUNTS = listOf(0, 5, 12, 20)
+        private val STYLES = Style.values().filter { it != Style.MAX }
+        private val FACE_MODES = listOf(ClockState.FACE_TOOL, ClockState.FACE_NUMBERS, ClockState.FACE_LITE)
+    }
+}
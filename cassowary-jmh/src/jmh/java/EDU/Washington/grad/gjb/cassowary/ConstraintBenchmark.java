@@ -0,0 +1,72 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+package EDU.Washington.grad.gjb.cassowary;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Adding and removing constraints on a calendar-shaped tableau (see {@link Tableaus#calendar}),
+ * plus building and solving the whole thing from scratch, which is what the watchface does every
+ * time the calendar changes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ConstraintBenchmark {
+  /**
+   * Number of calendar events; the tableau has a few rows per event, plus a couple per overlap,
+   * so these come to roughly 30, 65, and 150 rows.
+   */
+  @Param({"4", "8", "16"})
+  public int events;
+
+  private Tableaus.CalendarLayout layout;
+  private ClLinearEquation sizeEquation;
+  private ClLinearInequality orderInequality;
+
+  @Setup
+  public void setup() throws ExCLError {
+    layout = Tableaus.calendar(events, SEED);
+
+    // the two kinds of constraint the layout adds for every pair of overlapping events
+    int last = events - 1;
+    sizeEquation = new ClLinearEquation(
+        layout.sizes[0], new ClLinearExpression(layout.sizes[last]), ClStrength.weak, 0.5);
+    orderInequality = new ClLinearInequality(
+        new ClLinearExpression(layout.starts[0]).plus(layout.sizes[0]), CL.LEQ, layout.starts[last], ClStrength.strong);
+  }
+
+  /** Adds a weak equality and takes it out again, leaving the tableau as it was. */
+  @Benchmark
+  public ClSimplexSolver addRemoveEquation() throws ExCLError {
+    layout.solver.addConstraint(sizeEquation);
+    return layout.solver.removeConstraint(sizeEquation);
+  }
+
+  /** Adds an inequality, which needs a slack variable, and takes it out again. */
+  @Benchmark
+  public ClSimplexSolver addRemoveInequality() throws ExCLError {
+    layout.solver.addConstraint(orderInequality);
+    return layout.solver.removeConstraint(orderInequality);
+  }
+
+  @Benchmark
+  public ClSimplexSolver buildAndSolve() throws ExCLError {
+    return Tableaus.calendar(events, SEED).solver;
+  }
+
+  private static final long SEED = 2014;
+}
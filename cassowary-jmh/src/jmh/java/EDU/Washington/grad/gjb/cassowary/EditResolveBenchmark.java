@@ -0,0 +1,75 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+package EDU.Washington.grad.gjb.cassowary;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Edit cycles on a chain of variables (see {@link Tableaus#editableChain}): suggest new values for
+ * both ends and re-solve. Every other operation squeezes the chain so the gaps are forced down
+ * to their minimum, which leaves rows infeasible for the dual simplex to fix, and then lets
+ * it go again.
+ *
+ * {@link #suggestAndResolve} is the whole public resolve(); {@link #suggestAndDualOptimize} is
+ * just the dual simplex part of it, without copying values out to the variables or resetting
+ * the stays.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EditResolveBenchmark {
+  /** Number of variables in the chain. */
+  @Param({"4", "16", "64"})
+  public int length;
+
+  private ClVariable[] chain;
+  private ClSimplexSolver solver;
+  private boolean squeezed;
+
+  @Setup
+  public void setup() throws ExCLError {
+    chain = new ClVariable[length];
+    solver = Tableaus.editableChain(chain);
+    solver.beginEdit();
+  }
+
+  @TearDown
+  public void tearDown() throws ExCLError {
+    solver.endEdit();
+  }
+
+  private void suggest() throws ExCLError {
+    squeezed = !squeezed;
+    double last = squeezed ? length : length * 30.0;
+    solver.suggestValue(chain[0], 0.0);
+    solver.suggestValue(chain[length - 1], last);
+  }
+
+  @Benchmark
+  public ClSimplexSolver suggestAndResolve() throws ExCLError {
+    suggest();
+    solver.resolve();
+    return solver;
+  }
+
+  @Benchmark
+  public ClSimplexSolver suggestAndDualOptimize() throws ExCLError {
+    suggest();
+    solver.dualOptimize();
+    return solver;
+  }
+}
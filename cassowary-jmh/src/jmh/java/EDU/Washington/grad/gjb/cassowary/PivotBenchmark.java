@@ -0,0 +1,68 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+package EDU.Washington.grad.gjb.cassowary;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * ClSimplexSolver.pivot() on a solved, calendar-shaped tableau. Each operation pivots a slack
+ * variable into the basis and then straight back out, so the tableau ends up where it started
+ * and every operation does the same work.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PivotBenchmark {
+  /** Number of calendar events, as in {@link ConstraintBenchmark}. */
+  @Param({"4", "8", "16"})
+  public int events;
+
+  private ClSimplexSolver solver;
+  private ClAbstractVariable entryVar;
+  private ClAbstractVariable exitVar;
+
+  @Setup
+  public void setup() throws ExCLError {
+    solver = Tableaus.calendar(events, 2014).solver;
+
+    // pick the basic slack variable whose row is the longest, and a pivotable variable in that row
+    int longest = -1;
+    for (Map.Entry<ClAbstractVariable, ClLinearExpression> row : solver.rows().entrySet()) {
+      ClAbstractVariable basic = row.getKey();
+      if (!basic.isRestricted() || basic instanceof ClObjectiveVariable) continue;
+
+      for (ClAbstractVariable v : row.getValue().terms().keySet()) {
+        if (v.isPivotable() && row.getValue().terms().size() > longest) {
+          longest = row.getValue().terms().size();
+          exitVar = basic;
+          entryVar = v;
+        }
+      }
+    }
+
+    if (exitVar == null) {
+      throw new IllegalStateException("no pivotable row with " + events + " events");
+    }
+  }
+
+  @Benchmark
+  public ClSimplexSolver pivotAndBack() throws ExCLInternalError {
+    solver.pivot(entryVar, exitVar);
+    solver.pivot(exitVar, entryVar);
+    return solver;
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+package EDU.Washington.grad.gjb.cassowary;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * ClLinearExpression.substituteOut(), the inner loop of every pivot: replace one variable in a row
+ * with an expression, merging the terms. The row gets modified, so each operation works on a fresh
+ * clone; {@link #cloneOnly} measures the clone by itself, to subtract.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SubstituteOutBenchmark {
+  /** Number of terms in the row, and in the expression being substituted in. */
+  @Param({"4", "16", "64"})
+  public int terms;
+
+  private ClLinearExpression row;
+  private ClLinearExpression expr;
+  private ClVariable var;
+  private ClVariable subject;
+  private ClSimplexSolver solver;
+
+  @Setup
+  public void setup() {
+    solver = new ClSimplexSolver();
+    subject = new ClVariable("subject");
+    var = new ClVariable("var");
+
+    // the row and the expression share half their variables, so some terms merge and some don't
+    ClVariable[] vars = new ClVariable[terms * 3 / 2];
+    for (int i = 0; i < vars.length; i++) {
+      vars[i] = new ClVariable("v" + i);
+    }
+
+    row = new ClLinearExpression(var, 2.0, 5.0);
+    for (int i = 0; i < terms - 1; i++) {
+      row.addVariable(vars[i], i + 1.0);
+    }
+
+    expr = new ClLinearExpression(7.0);
+    for (int i = terms / 2; i < vars.length; i++) {
+      expr.addVariable(vars[i], -0.5 * i);
+    }
+  }
+
+  @Benchmark
+  public ClLinearExpression cloneOnly() {
+    return (ClLinearExpression) row.clone();
+  }
+
+  @Benchmark
+  public ClLinearExpression substituteOut() {
+    ClLinearExpression copy = (ClLinearExpression) row.clone();
+    copy.substituteOut(var, expr, subject, solver);
+    return copy;
+  }
+}
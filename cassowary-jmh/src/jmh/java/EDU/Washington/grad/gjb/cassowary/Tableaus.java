@@ -0,0 +1,102 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+package EDU.Washington.grad.gjb.cassowary;
+
+import java.util.Random;
+
+/**
+ * Builds the solvers that the benchmarks work on. The benchmarks live in the Cassowary package so
+ * they can get at protected methods like pivot() and dualOptimize() directly.
+ */
+final class Tableaus {
+  private Tableaus() {}
+
+  static final double MAXLEVEL = 10000;
+
+  /** A solver set up the way the watchface's EventLayoutUniform sets one up, plus its variables. */
+  static final class CalendarLayout {
+    final ClSimplexSolver solver = new ClSimplexSolver();
+    final ClVariable[] starts;
+    final ClVariable[] sizes;
+
+    CalendarLayout(int events) {
+      starts = new ClVariable[events];
+      sizes = new ClVariable[events];
+      for (int i = 0; i < events; i++) {
+        starts[i] = new ClVariable("start" + i);
+        sizes[i] = new ClVariable("size" + i);
+      }
+    }
+  }
+
+  /**
+   * The same constraints as EventLayoutUniform.go(), for the given number of events scattered
+   * randomly over the twelve-hour dial, fifteen minutes to three hours long, and solved.
+   */
+  static CalendarLayout calendar(int events, long seed) throws ExCLError {
+    Random random = new Random(seed);
+    int[] startMinutes = new int[events];
+    int[] endMinutes = new int[events];
+    for (int i = 0; i < events; i++) {
+      startMinutes[i] = random.nextInt(12 * 4) * 15;
+      endMinutes[i] = startMinutes[i] + (1 + random.nextInt(12)) * 15;
+    }
+
+    CalendarLayout layout = new CalendarLayout(events);
+    ClSimplexSolver solver = layout.solver;
+    ClLinearExpression sumSizes = new ClLinearExpression(0.0);
+
+    for (int i = 0; i < events; i++) {
+      solver.addBounds(layout.starts[i], 0.0, MAXLEVEL);
+      solver.addBounds(layout.sizes[i], 0.0, MAXLEVEL);
+
+      ClLinearExpression levelPlusSize = new ClLinearExpression(layout.starts[i]).plus(layout.sizes[i]);
+      solver.addConstraint(new ClLinearInequality(
+          levelPlusSize, CL.LEQ, new ClLinearExpression(MAXLEVEL), ClStrength.required));
+
+      sumSizes = sumSizes.plus(layout.sizes[i]);
+    }
+
+    solver.addConstraint(new ClLinearInequality(
+        sumSizes, CL.GEQ, new ClLinearExpression(MAXLEVEL * events), ClStrength.weak));
+
+    for (int i = 0; i < events; i++) {
+      for (int j = i + 1; j < events; j++) {
+        if (startMinutes[i] < endMinutes[j] && startMinutes[j] < endMinutes[i]) {
+          ClLinearExpression levelPlusSize = new ClLinearExpression(layout.starts[i]).plus(layout.sizes[i]);
+          solver.addConstraint(new ClLinearInequality(levelPlusSize, CL.LEQ, layout.starts[j], ClStrength.required));
+          solver.addConstraint(new ClLinearEquation(
+              layout.sizes[i], new ClLinearExpression(layout.sizes[j]), ClStrength.weak, 0.5));
+        }
+      }
+    }
+
+    solver.solve();
+    return layout;
+  }
+
+  /**
+   * A chain of variables, each at least a fixed gap after the one before, all with weak stays,
+   * and with the first and last as edit variables: the classic Cassowary drag-a-handle setup.
+   * Call beginEdit() before suggesting values.
+   */
+  static ClSimplexSolver editableChain(ClVariable[] chain) throws ExCLError {
+    ClSimplexSolver solver = new ClSimplexSolver();
+    for (int i = 0; i < chain.length; i++) {
+      chain[i] = new ClVariable("x" + i, i * 20.0);
+      solver.addStay(chain[i]);
+      if (i > 0) {
+        solver.addConstraint(new ClLinearInequality(
+            chain[i], CL.GEQ, new ClLinearExpression(chain[i - 1]).plus(new ClLinearExpression(10.0))));
+      }
+    }
+    solver.addEditVar(chain[0]);
+    solver.addEditVar(chain[chain.length - 1]);
+    return solver;
+  }
+}
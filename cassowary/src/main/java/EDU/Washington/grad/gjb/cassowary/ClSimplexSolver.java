@@ -35,6 +35,7 @@ public class ClSimplexSolver extends ClTableau
     _slackCounter = 0;
     _artificialCounter = 0;
     _dummyCounter = 0;
+    _pivotCounter = 0;
     _epsilon = 1e-8;
 
     _fOptimizeAutomatically = true;
@@ -213,7 +214,11 @@ public class ClSimplexSolver extends ClTableau
     {
 //        for (Enumeration e = _editVarMap.keys(); e.hasMoreElements() ; ) {
 //          ClVariable v = (ClVariable) e.nextElement();
-      for(ClVariable v: _editVarMap.keySet()) {
+      // iterate over a copy, since removeEditVar() removes from _editVarMap;
+      // the original Hashtable enumeration tolerated that, but the HashMap
+      // iterator this was ported to throws, so this has been broken since
+      // the port (nothing in the app uses edit variables, so nobody noticed)
+      for(ClVariable v: new ArrayList<>(_editVarMap.keySet())) {
         ClEditInfo cei = _editVarMap.get(v);
         if (cei.Index() >= n) {
           removeEditVar(v);
@@ -640,6 +645,16 @@ public class ClSimplexSolver extends ClTableau
     return retstr.toString();
   }
 
+  // Number of pivots done so far, for performance tracing
+  public final long getPivotCount() {
+    return _pivotCounter;
+  }
+
+  // Number of rows in the tableau right now, for performance tracing
+  public final int getRowCount() {
+    return rows().size();
+  }
+
   public final String getDebugInfo() {
     StringBuilder bstr = new StringBuilder(toString());
     bstr.append(getInternalInfo());
@@ -1090,6 +1105,8 @@ public class ClSimplexSolver extends ClTableau
     // otherwise it should be a pivotable variable -- enforced at call sites,
     // hopefully
 
+    _pivotCounter++;
+
     ClLinearExpression  pexpr = removeRow(exitVar);
 
     pexpr.changeSubject(exitVar,entryVar);
@@ -1206,6 +1223,7 @@ public class ClSimplexSolver extends ClTableau
   private long _slackCounter;
   private long _artificialCounter;
   private long _dummyCounter;
+  private long _pivotCounter;
 
   private Vector<ClDouble> _resolve_pair;
 
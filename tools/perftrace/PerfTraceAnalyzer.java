@@ -0,0 +1,351 @@
+/*
+ * CalWatch / CalWatch2
+ * Copyright © 2014-2022 by Dan S. Wallach
+ * Home page: http://www.cs.rice.edu/~dwallach/calwatch/
+ * Licensing: http://www.cs.rice.edu/~dwallach/calwatch/licensing.html
+ */
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Offline analyzer for the performance traces that the watchface writes (see PerfTrace.kt). This is a
+ * plain JVM program with no dependencies, so you don't need Gradle or Android to run it. Grab the
+ * trace files from the watch and point this at them:
+ *
+ * <pre>
+ *   adb exec-out run-as org.dwallach.calwatch2 cat files/perf-trace.old.bin > perf-trace.old.bin
+ *   adb exec-out run-as org.dwallach.calwatch2 cat files/perf-trace.bin > perf-trace.bin
+ *   java tools/perftrace/PerfTraceAnalyzer.java perf-trace.old.bin perf-trace.bin
+ * </pre>
+ *
+ * (Running a single source file like that needs Java 11 or later. Otherwise, javac it first.)
+ *
+ * The output is an overall summary followed by an hour-by-hour table of rendering and calendar
+ * activity next to the battery level, which is what you want when trying to figure out where
+ * the battery went.
+ */
+public class PerfTraceAnalyzer {
+  private static final int MAGIC = 0x43575054; // "CWPT"
+  private static final int VERSION = 1;
+
+  // These have to match PerfTrace.Event in the app.
+  private static final int FRAME = 1;
+  private static final int PHASE_P50 = 2;
+  private static final int PHASE_P99 = 3;
+  private static final int PHASE_MAX = 4;
+  private static final int FETCH = 5;
+  private static final int LAYOUT = 6;
+  private static final int SOLVER_PIVOTS = 7;
+  private static final int CACHE_MISS = 8;
+  private static final int CACHE_HITS = 9;
+  private static final int AMBIENT = 10;
+  private static final int BATTERY = 11;
+  private static final int STARTUP_PHASE = 12;
+  private static final int FIRST_FRAME = 13;
+
+  // And these have to match TimeWrapper.Phase and LayerCompositor.Layer.
+  private static final String[] PHASES = {
+    "CALENDAR", "FACE", "BATTERY", "COMPLICATIONS", "HANDS", "MONTH_BOX", "FRAME", "ON_DRAW_OVERHEAD",
+    "AMBIENT_TICK_CPU"
+  };
+  private static final String[] LAYERS = { "CALENDAR", "FACE", "MONTH_BOX" };
+
+  // And this one has to match StartupTrace.Phase.
+  private static final String[] STARTUP_PHASES = {
+    "SUPER_ON_CREATE", "PREFERENCES", "WATCH_FACE_STYLE", "CLOCK_FACE", "COMPLICATIONS", "FIRST_FRAME",
+    "VERSION", "BATTERY", "CALENDAR", "TIME_SERVICE", "SNAPSHOT"
+  };
+
+  private static final long HOUR_MILLIS = 3600000L;
+
+  private static final class Record {
+    final long wallMillis;
+    final int code;
+    final int aux;
+    final long value;
+
+    Record(long wallMillis, int code, int aux, long value) {
+      this.wallMillis = wallMillis;
+      this.code = code;
+      this.aux = aux;
+      this.value = value;
+    }
+  }
+
+  /** Everything we accumulate for one hour of wall-clock time. */
+  private static final class HourStats {
+    long frames;
+    long frameNanos;
+    long fetches;
+    long fetchNanos;
+    long layouts;
+    long layoutNanos;
+    long pivots;
+    long cacheMisses;
+    double firstBattery = -1;
+    double lastBattery = -1;
+    boolean charging;
+  }
+
+  private final List<Record> records = new ArrayList<>();
+  private long droppedRecords;
+  private int chunks;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length == 0) {
+      System.err.println("usage: java PerfTraceAnalyzer.java trace-file [trace-file ...]");
+      System.exit(1);
+    }
+
+    PerfTraceAnalyzer analyzer = new PerfTraceAnalyzer();
+    for (String filename : args) {
+      analyzer.read(filename);
+    }
+    analyzer.report();
+  }
+
+  private void read(String filename) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)))) {
+      while (true) {
+        int magic;
+        try {
+          magic = in.readInt();
+        } catch (EOFException e) {
+          return; // clean end of file
+        }
+
+        int version = in.readInt();
+        if (magic != MAGIC || version != VERSION) {
+          System.err.printf("%s: bad chunk header (magic %08x, version %d), skipping the rest of the file%n",
+              filename, magic, version);
+          return;
+        }
+
+        long flushWallMillis = in.readLong();
+        long flushElapsedNanos = in.readLong();
+        droppedRecords += in.readInt();
+        int count = in.readInt();
+        chunks++;
+
+        try {
+          for (int i = 0; i < count; i++) {
+            long elapsedNanos = in.readLong();
+            int code = in.readShort();
+            int aux = in.readShort();
+            long value = in.readLong();
+
+            // the header ties the watch's monotonic clock to the wall clock
+            long wallMillis = flushWallMillis - (flushElapsedNanos - elapsedNanos) / 1000000L;
+            records.add(new Record(wallMillis, code, aux, value));
+          }
+        } catch (EOFException e) {
+          System.err.printf("%s: truncated chunk, keeping what we got%n", filename);
+          return;
+        }
+      }
+    }
+  }
+
+  private void report() {
+    if (records.isEmpty()) {
+      System.out.println("No records.");
+      return;
+    }
+
+    records.sort((a, b) -> Long.compare(a.wallMillis, b.wallMillis));
+
+    SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    long start = records.get(0).wallMillis;
+    long end = records.get(records.size() - 1).wallMillis;
+
+    System.out.printf("Trace: %s to %s (%.2f hours), %d records in %d chunks, %d dropped%n%n",
+        dateFormat.format(new Date(start)), dateFormat.format(new Date(end)),
+        (end - start) / (double) HOUR_MILLIS, records.size(), chunks, droppedRecords);
+
+    long[] frameNanos = values(FRAME);
+    System.out.println("Frames (drawEverything):  " + summarize(frameNanos));
+    System.out.println("Calendar fetches:         " + summarize(values(FETCH)));
+    System.out.println("Calendar layouts:         " + summarize(values(LAYOUT)));
+
+    long[] pivots = values(SOLVER_PIVOTS);
+    if (pivots.length > 0) {
+      Arrays.sort(pivots);
+      System.out.printf("Solver pivots:            n(%d), median %d, max %d%n",
+          pivots.length, pivots[pivots.length / 2], pivots[pivots.length - 1]);
+    }
+
+    System.out.println();
+    reportPhases();
+    reportStartup();
+    reportCaches();
+    reportAmbient(end);
+    System.out.println();
+    reportHours();
+  }
+
+  private long[] values(int code) {
+    return records.stream().filter(r -> r.code == code).mapToLong(r -> r.value).toArray();
+  }
+
+  /** Percentiles of a bunch of nanosecond durations, printed in milliseconds. */
+  private static String summarize(long[] nanos) {
+    if (nanos.length == 0) return "none";
+
+    long[] sorted = nanos.clone();
+    Arrays.sort(sorted);
+    long sum = 0;
+    for (long n : sorted) sum += n;
+
+    return String.format("n(%d), mean %.3f ms, p50/p90/p99/max (ms): %.3f / %.3f / %.3f / %.3f",
+        sorted.length, sum / (double) sorted.length / 1e6,
+        percentile(sorted, 0.50) / 1e6, percentile(sorted, 0.90) / 1e6,
+        percentile(sorted, 0.99) / 1e6, sorted[sorted.length - 1] / 1e6);
+  }
+
+  private static long percentile(long[] sorted, double fraction) {
+    int index = (int) Math.ceil(fraction * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+  }
+
+  /** The app records per-phase percentiles once per report interval; we show the worst of each. */
+  private void reportPhases() {
+    long[] worstP99 = new long[PHASES.length];
+    long[] worstMax = new long[PHASES.length];
+    boolean any = false;
+
+    for (Record r : records) {
+      if (r.aux < 0 || r.aux >= PHASES.length) continue;
+      if (r.code == PHASE_P99) {
+        worstP99[r.aux] = Math.max(worstP99[r.aux], r.value);
+        any = true;
+      } else if (r.code == PHASE_MAX) {
+        worstMax[r.aux] = Math.max(worstMax[r.aux], r.value);
+      }
+    }
+
+    if (!any) return;
+
+    System.out.println("Render phases (worst interval):");
+    for (int i = 0; i < PHASES.length; i++) {
+      System.out.printf("  %-18s p99 %8.3f ms, max %8.3f ms%n", PHASES[i], worstP99[i] / 1e6, worstMax[i] / 1e6);
+    }
+  }
+
+  /** Every engine start records each startup phase once; we show the median and worst of each. */
+  private void reportStartup() {
+    long[] firstFrames = values(FIRST_FRAME);
+    if (firstFrames.length == 0) return;
+
+    System.out.println("Time to first frame:      " + summarize(firstFrames));
+    for (int i = 0; i < STARTUP_PHASES.length; i++) {
+      final int phase = i;
+      long[] nanos = records.stream()
+          .filter(r -> r.code == STARTUP_PHASE && r.aux == phase)
+          .mapToLong(r -> r.value)
+          .toArray();
+      if (nanos.length == 0) continue;
+
+      Arrays.sort(nanos);
+      System.out.printf("  %-18s p50 %8.3f ms, max %8.3f ms%n",
+          STARTUP_PHASES[i], percentile(nanos, 0.50) / 1e6, nanos[nanos.length - 1] / 1e6);
+    }
+  }
+
+  private void reportCaches() {
+    long[] misses = new long[LAYERS.length];
+    long[] hits = new long[LAYERS.length];
+
+    for (Record r : records) {
+      if (r.aux < 0 || r.aux >= LAYERS.length) continue;
+      if (r.code == CACHE_MISS) misses[r.aux]++;
+      // the hit counts are running totals, which start over when the process does
+      else if (r.code == CACHE_HITS) hits[r.aux] = Math.max(hits[r.aux], r.value);
+    }
+
+    System.out.println("Layer caches:");
+    for (int i = 0; i < LAYERS.length; i++) {
+      System.out.printf("  %-10s misses %d, hits (max running total) %d%n", LAYERS[i], misses[i], hits[i]);
+    }
+  }
+
+  private void reportAmbient(long end) {
+    long ambientMillis = 0;
+    long transitions = 0;
+    long enteredAt = -1;
+
+    for (Record r : records) {
+      if (r.code != AMBIENT) continue;
+      transitions++;
+      if (r.value != 0) {
+        enteredAt = r.wallMillis;
+      } else if (enteredAt >= 0) {
+        ambientMillis += r.wallMillis - enteredAt;
+        enteredAt = -1;
+      }
+    }
+    if (enteredAt >= 0) ambientMillis += end - enteredAt;
+
+    System.out.printf("Ambient: %d transitions, %.2f hours in ambient mode%n", transitions, ambientMillis / (double) HOUR_MILLIS);
+  }
+
+  private void reportHours() {
+    Map<Long, HourStats> hours = new TreeMap<>();
+
+    for (Record r : records) {
+      HourStats h = hours.computeIfAbsent(r.wallMillis / HOUR_MILLIS, k -> new HourStats());
+      switch (r.code) {
+        case FRAME:
+          h.frames++;
+          h.frameNanos += r.value;
+          break;
+        case FETCH:
+          h.fetches++;
+          h.fetchNanos += r.value;
+          break;
+        case LAYOUT:
+          h.layouts++;
+          h.layoutNanos += r.value;
+          break;
+        case SOLVER_PIVOTS:
+          h.pivots += r.value;
+          break;
+        case CACHE_MISS:
+          h.cacheMisses++;
+          break;
+        case BATTERY:
+          double pct = r.value / 10.0;
+          if (h.firstBattery < 0) h.firstBattery = pct;
+          h.lastBattery = pct;
+          h.charging |= r.aux != 0;
+          break;
+        default:
+          break;
+      }
+    }
+
+    SimpleDateFormat hourFormat = new SimpleDateFormat("MM-dd HH:00");
+    System.out.println("Hour          frames  render(ms)  fetches  fetch(ms)  layouts  layout(ms)  pivots  misses  battery");
+    for (Map.Entry<Long, HourStats> entry : hours.entrySet()) {
+      HourStats h = entry.getValue();
+      String battery = h.firstBattery < 0
+          ? "-"
+          : String.format("%.1f%% -> %.1f%%%s", h.firstBattery, h.lastBattery, h.charging ? " (charging)" : "");
+
+      System.out.printf("%s  %6d  %10.1f  %7d  %9.1f  %7d  %10.1f  %6d  %6d  %s%n",
+          hourFormat.format(new Date(entry.getKey() * HOUR_MILLIS)),
+          h.frames, h.frameNanos / 1e6, h.fetches, h.fetchNanos / 1e6,
+          h.layouts, h.layoutNanos / 1e6, h.pivots, h.cacheMisses, battery);
+    }
+  }
+}